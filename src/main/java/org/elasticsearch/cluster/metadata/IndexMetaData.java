@@ -40,12 +40,14 @@ import org.elasticsearch.common.collect.ImmutableOpenIntMap;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.collect.MapBuilder;
 import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.compress.CompressorFactory;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.xcontent.*;
+import org.elasticsearch.core.internal.io.IOUtils;
 import org.elasticsearch.gateway.MetaDataStateFormat;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.mapper.MapperService;
@@ -53,7 +55,11 @@ import org.elasticsearch.index.seqno.SequenceNumbers;
 import org.elasticsearch.index.shard.ShardId;
 import org.elasticsearch.rest.RestStatus;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.time.Instant;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
@@ -1273,20 +1279,23 @@ public class IndexMetaData implements Diffable<IndexMetaData>, ToXContentFragmen
             builder.field(KEY_STATE, indexMetaData.getState().toString().toLowerCase(Locale.ENGLISH));
 
             boolean binary = params.paramAsBoolean("binary", false);
+            boolean rawMappings = binary == false && params.paramAsBoolean("raw_mappings", false);
 
             builder.startObject(KEY_SETTINGS);
             indexMetaData.getSettings().toXContent(builder, new MapParams(Collections.singletonMap("flat_settings", "true")));
             builder.endObject();
 
-            builder.startArray(KEY_MAPPINGS);
-            for (ObjectObjectCursor<String, MappingMetaData> cursor : indexMetaData.getMappings()) {
-                if (binary) {
-                    builder.value(cursor.value.source().compressed());
-                } else {
-                    builder.map(XContentHelper.convertToMap(new BytesArray(cursor.value.source().uncompressed()), true).v2());
+            if (rawMappings == false || rawMappingsToXContent(indexMetaData, builder) == false) {
+                builder.startArray(KEY_MAPPINGS);
+                for (ObjectObjectCursor<String, MappingMetaData> cursor : indexMetaData.getMappings()) {
+                    if (binary) {
+                        builder.value(cursor.value.source().compressed());
+                    } else {
+                        builder.map(XContentHelper.convertToMap(new BytesArray(cursor.value.source().uncompressed()), true).v2());
+                    }
                 }
+                builder.endArray();
             }
-            builder.endArray();
 
             for (ObjectObjectCursor<String, DiffableStringMap> cursor : indexMetaData.customData) {
                 builder.field(cursor.key);
@@ -1324,6 +1333,44 @@ public class IndexMetaData implements Diffable<IndexMetaData>, ToXContentFragmen
             builder.endObject();
         }
 
+        /**
+         * Writes the mappings as one raw JSON array of the stored sources, decompressed straight into the output of the builder instead
+         * of being parsed into maps and serialized again, so a limited output stops decompressing once it is full. Writes nothing and
+         * returns false if the builder or a source is not JSON.
+         */
+        @SuppressWarnings("deprecation") // stored sources carry no content type, sniffing the stream is the only way to tell
+        private static boolean rawMappingsToXContent(IndexMetaData indexMetaData, XContentBuilder builder) throws IOException {
+            if (builder.contentType() != XContentType.JSON) {
+                return false;
+            }
+            // the array is a single raw value, the generator does not write the separators between raw values of an array
+            List<InputStream> parts = new ArrayList<>(indexMetaData.getMappings().size() * 2 + 1);
+            parts.add(new ByteArrayInputStream(new byte[] {'['}));
+            try {
+                for (ObjectCursor<MappingMetaData> cursor : indexMetaData.getMappings().values()) {
+                    if (parts.size() > 1) {
+                        parts.add(new ByteArrayInputStream(new byte[] {','}));
+                    }
+                    InputStream source = new BufferedInputStream(
+                            CompressorFactory.COMPRESSOR.streamInput(cursor.value.source().compressedReference().streamInput()));
+                    parts.add(source);
+                    if (XContentFactory.xContentType(source) != XContentType.JSON) {
+                        IOUtils.close(parts);
+                        return false;
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                IOUtils.closeWhileHandlingException(parts);
+                throw e;
+            }
+            parts.add(new ByteArrayInputStream(new byte[] {']'}));
+            builder.field(KEY_MAPPINGS);
+            try (InputStream mappings = new SequenceInputStream(Collections.enumeration(parts))) {
+                builder.rawValue(mappings, XContentType.JSON);
+            }
+            return true;
+        }
+
         public static IndexMetaData fromXContent(XContentParser parser) throws IOException {
             if (parser.currentToken() == null) { // fresh parser? move to the first token
                 parser.nextToken();
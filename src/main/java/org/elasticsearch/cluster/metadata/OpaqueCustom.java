@@ -0,0 +1,151 @@
+package org.elasticsearch.cluster.metadata;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.AbstractNamedDiffable;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedObjectNotFoundException;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Objects;
+
+/**
+ * A {@link MetaData.Custom} without a registered parser, for example one of a plugin that is not loaded, kept as the raw bytes it was
+ * read from instead of being skipped. It prints as its original content and is written back unchanged with the global state, so the
+ * state files can be read and rewritten without the plugins that own their customs.
+ */
+public final class OpaqueCustom extends AbstractNamedDiffable<MetaData.Custom> implements MetaData.Custom {
+
+    private static final Logger logger = LogManager.getLogger(OpaqueCustom.class);
+
+    private final String type;
+    private final XContentType xContentType;
+    private final BytesReference source;
+
+    public OpaqueCustom(String type, XContentType xContentType, BytesReference source) {
+        this.type = Objects.requireNonNull(type);
+        this.xContentType = Objects.requireNonNull(xContentType);
+        this.source = Objects.requireNonNull(source);
+    }
+
+    /**
+     * Returns a registry parsing the entries of {@code registry} as before and every other {@link MetaData.Custom} as an
+     * {@link OpaqueCustom}, the given registry if it already does.
+     */
+    public static NamedXContentRegistry passthrough(NamedXContentRegistry registry) {
+        return registry instanceof PassthroughRegistry ? registry : new PassthroughRegistry(registry);
+    }
+
+    /**
+     * Copies the object the parser is positioned on, the parser is left on its end.
+     */
+    static OpaqueCustom fromXContent(String type, XContentParser parser) throws IOException {
+        if (parser.currentToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalArgumentException("expected an object for custom [" + type + "] but got " + parser.currentToken());
+        }
+        final XContentType xContentType = parser.contentType();
+        try (XContentBuilder builder = XContentBuilder.builder(xContentType.xContent())) {
+            builder.copyCurrentStructure(parser);
+            return new OpaqueCustom(type, xContentType, BytesReference.bytes(builder));
+        }
+    }
+
+    public XContentType getXContentType() {
+        return xContentType;
+    }
+
+    public BytesReference getSource() {
+        return source;
+    }
+
+    @Override
+    public String getWriteableName() {
+        return type;
+    }
+
+    @Override
+    public EnumSet<MetaData.XContentContext> context() {
+        // it was read from the global state, so it belonged to the gateway context
+        return MetaData.API_AND_GATEWAY;
+    }
+
+    @Override
+    public Version getMinimalSupportedVersion() {
+        return Version.CURRENT.minimumCompatibilityVersion();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        // nothing can read it back without the plugin, this only keeps the diffs of the cluster state working
+        out.writeString(xContentType.mediaType());
+        out.writeBytesReference(source);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        // a custom writes the fields of its object, the caller has started it
+        try (XContentParser parser = xContentType.xContent().createParser(NamedXContentRegistry.EMPTY,
+                DeprecationHandler.THROW_UNSUPPORTED_OPERATION, source.streamInput())) {
+            parser.nextToken();
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                builder.copyCurrentStructure(parser);
+            }
+        }
+        return builder;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final OpaqueCustom that = (OpaqueCustom) o;
+        return type.equals(that.type) && xContentType == that.xContentType && source.equals(that.source);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(type, xContentType, source);
+    }
+
+    @Override
+    public String toString() {
+        return "opaque custom [" + type + "] of [" + source.length() + "] bytes";
+    }
+
+    private static final class PassthroughRegistry extends NamedXContentRegistry {
+
+        private final NamedXContentRegistry delegate;
+
+        private PassthroughRegistry(NamedXContentRegistry delegate) {
+            super(Collections.emptyList());
+            this.delegate = delegate;
+        }
+
+        @Override
+        public <T, C> T parseNamedObject(Class<T> categoryClass, String name, XContentParser parser, C context) throws IOException {
+            try {
+                return delegate.parseNamedObject(categoryClass, name, parser, context);
+            } catch (NamedObjectNotFoundException e) {
+                // the lookup fails before the parser moves, so the custom can still be copied
+                if (categoryClass != MetaData.Custom.class) {
+                    throw e;
+                }
+                logger.debug("keeping custom [{}] without a registered parser as raw bytes", name);
+                return categoryClass.cast(fromXContent(name, parser));
+            }
+        }
+    }
+}
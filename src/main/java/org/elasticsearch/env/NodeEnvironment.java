@@ -314,8 +314,18 @@ public final class NodeEnvironment implements Closeable {
         }
     }
 
-    public void reload(Environment environment) throws IOException {
-        this.nodeMetaData = new NodeEnvironment(environment.settings(), environment).nodeMetaData;
+    /**
+     * Re-reads the node metadata from the node paths of this environment, nothing else is checked or created again. The current node
+     * metadata is kept if there is no node state file, like for a node without local storage.
+     */
+    public void reload() throws IOException {
+        if (nodePaths == null) {
+            return;
+        }
+        final NodeMetaData reloaded = loadNodeMetaData(logger, nodePaths);
+        if (reloaded != null) {
+            this.nodeMetaData = reloaded;
+        }
     }
 
     /**
@@ -388,6 +398,25 @@ public final class NodeEnvironment implements Closeable {
      */
     private static NodeMetaData loadOrCreateNodeMetaData(Settings settings, Logger logger,
                                                          NodePath... nodePaths) throws IOException {
+        NodeMetaData metaData = loadNodeMetaData(logger, nodePaths);
+        if (metaData == null) {
+            metaData = new NodeMetaData(generateNodeId(settings), Version.CURRENT);
+//        } else {
+//            assert nodeIds.equals(Collections.singleton(metaData.nodeId())) : nodeIds + " doesn't match " + metaData;
+//            metaData = metaData.upgradeToCurrentVersion();
+        }
+
+        // we write again to make sure all paths have the latest state file
+//        assert metaData.nodeVersion().equals(Version.CURRENT) : metaData.nodeVersion() + " != " + Version.CURRENT;
+//        NodeMetaData.FORMAT.writeAndCleanup(metaData, paths);
+
+        return metaData;
+    }
+
+    /**
+     * Loads the latest node metadata of the node paths, or null if there is none, failing if the paths belong to several nodes.
+     */
+    private static NodeMetaData loadNodeMetaData(Logger logger, NodePath... nodePaths) throws IOException {
         final Path[] paths = Arrays.stream(nodePaths).map(np -> np.path).toArray(Path[]::new);
 
         final Set<String> nodeIds = new HashSet<>();
@@ -402,19 +431,8 @@ public final class NodeEnvironment implements Closeable {
                 "data paths " + Arrays.toString(paths) + " belong to multiple nodes with IDs " + nodeIds);
         }
 
-        NodeMetaData metaData = NodeMetaData.FORMAT.loadLatestState(logger, NamedXContentRegistry.EMPTY, paths);
-        if (metaData == null) {
-            assert nodeIds.isEmpty() : nodeIds;
-            metaData = new NodeMetaData(generateNodeId(settings), Version.CURRENT);
-//        } else {
-//            assert nodeIds.equals(Collections.singleton(metaData.nodeId())) : nodeIds + " doesn't match " + metaData;
-//            metaData = metaData.upgradeToCurrentVersion();
-        }
-
-        // we write again to make sure all paths have the latest state file
-//        assert metaData.nodeVersion().equals(Version.CURRENT) : metaData.nodeVersion() + " != " + Version.CURRENT;
-//        NodeMetaData.FORMAT.writeAndCleanup(metaData, paths);
-
+        final NodeMetaData metaData = NodeMetaData.FORMAT.loadLatestState(logger, NamedXContentRegistry.EMPTY, paths);
+        assert metaData != null || nodeIds.isEmpty() : nodeIds;
         return metaData;
     }
 
@@ -34,22 +34,31 @@ import org.elasticsearch.cluster.coordination.InMemoryPersistedState;
 import org.elasticsearch.cluster.metadata.*;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.CheckedSupplier;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.settings.ClusterSettings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.transport.TransportAddress;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
 import org.elasticsearch.discovery.DiscoveryModule;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.plugins.MetaDataUpgrader;
 import org.elasticsearch.transport.TransportService;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.function.UnaryOperator;
 
 /**
@@ -67,6 +76,65 @@ public class GatewayMetaState {
 //    private final SetOnce<PersistedState> persistedState = new SetOnce<>();
     private PersistedState persistedState = null;
 
+    private volatile int loadParallelism = 1;
+    private volatile TimeValue lastLoadTime = TimeValue.ZERO;
+
+    private boolean lazy = false;
+    private LazyMetaData lazyMetaData = null;
+    private MetaStateService metaStateService = null;
+
+    // the writer created by the last non-lazy start(), replaced when writeIndices() persists a new manifest and by reload()
+    private volatile IncrementalClusterStateWriter incrementalClusterStateWriter = null;
+    private Settings settings = null;
+    private LongSupplier relativeTimeMillisSupplier = null;
+
+    // registered once by start(Node), it persists through whichever writer is current so that restarts and reloads do not stack appliers
+    private GatewayClusterApplier gatewayClusterApplier = null;
+
+    // the loader of the last start() and how that start() turned the loaded state into the initial one, used by reload()
+    private MetaStateLoader metaStateLoader = null;
+    private UnaryOperator<ClusterState> initialStatePreparer = null;
+
+    /**
+     * Sets the number of threads used to read the per-index state files on the next {@code start}, 1 reads them one after another.
+     */
+    public void setLoadParallelism(int loadParallelism) {
+        if (loadParallelism < 1) {
+            throw new IllegalArgumentException("load parallelism must be at least 1 but was [" + loadParallelism + "]");
+        }
+        this.loadParallelism = loadParallelism;
+    }
+
+    public int getLoadParallelism() {
+        return loadParallelism;
+    }
+
+    /**
+     * Returns the time the last {@code start} took to load the manifest, global and index state files.
+     */
+    public TimeValue getLastLoadTime() {
+        return lastLoadTime;
+    }
+
+    /**
+     * In lazy mode the next {@code start} loads the manifest and the global state only, see {@link LazyMetaData}.
+     */
+    public void setLazy(boolean lazy) {
+        this.lazy = lazy;
+    }
+
+    /**
+     * Returns whether the current state was loaded lazily, in which case {@link #getLazyMetaData()} must be used instead of
+     * {@link #getPersistedState()}.
+     */
+    public boolean isLazy() {
+        return lazyMetaData != null;
+    }
+
+    public LazyMetaData getLazyMetaData() {
+        return lazyMetaData;
+    }
+
     public PersistedState getPersistedState() {
         return persistedState;
     }
@@ -76,30 +144,189 @@ public class GatewayMetaState {
     }
 
     public Manifest getManifest() {
-        return ((GatewayPersistedState) getPersistedState()).getManifest();
+        if (isLazy()) {
+            return lazyMetaData.getManifest();
+        }
+        return incrementalClusterStateWriter.getPreviousManifest();
+    }
+
+    /**
+     * Writes the given changed indices with new generations, followed by a new manifest referencing them. Unlike
+     * {@link PersistedState#setLastAcceptedState} with incremental writes turned off, the global state and the state files of all other
+     * indices are left untouched. Nothing is written if {@code indices} is empty, and the new index files are removed again if a write
+     * fails.
+     */
+    public void writeIndices(String reason, Collection<IndexMetaData> indices) throws WriteStateException {
+        if (indices.isEmpty()) {
+            return;
+        }
+        final Manifest manifest = getManifest();
+        final IncrementalClusterStateWriter.AtomicClusterStateWriter writer
+            = new IncrementalClusterStateWriter.AtomicClusterStateWriter(metaStateService, manifest);
+        final Map<Index, Long> indexGenerations = new HashMap<>(manifest.getIndexGenerations());
+        try {
+            for (IndexMetaData indexMetaData : indices) {
+                indexGenerations.put(indexMetaData.getIndex(), writer.writeIndex(reason, indexMetaData));
+            }
+        } catch (WriteStateException e) {
+            writer.rollback();
+            throw e;
+        }
+        final Manifest newManifest = new Manifest(manifest.getCurrentTerm(), manifest.getClusterStateVersion(),
+            manifest.getGlobalGeneration(), indexGenerations);
+        try {
+            writer.writeManifestAndCleanup(reason, newManifest);
+        } catch (WriteStateException e) {
+            // if the manifest write is dirty the new manifest may be on disk referencing the new index files, they must be kept then
+            if (e.isDirty() == false) {
+                writer.rollback();
+            }
+            throw e;
+        }
+        logger.info("wrote [{}] of [{}] index state files, reason [{}]", indices.size(), indexGenerations.size(), reason);
+
+        if (isLazy()) {
+            lazyMetaData = lazyMetaData.withManifest(newManifest);
+            return;
+        }
+        incrementalClusterStateWriter = newWriter(settings, metaStateService, newManifest,
+            withIndices(incrementalClusterStateWriter.getPreviousClusterState(), indices), relativeTimeMillisSupplier);
+        if (persistedState instanceof GatewayPersistedState) {
+            persistedState = new GatewayPersistedState(incrementalClusterStateWriter);
+        } else {
+            persistedState.setLastAcceptedState(withIndices(persistedState.getLastAcceptedState(), indices));
+        }
+    }
+
+    private static ClusterState withIndices(ClusterState clusterState, Collection<IndexMetaData> indices) {
+        final MetaData.Builder metaDataBuilder = MetaData.builder(clusterState.metaData());
+        for (IndexMetaData indexMetaData : indices) {
+            metaDataBuilder.put(indexMetaData, false);
+        }
+        return ClusterState.builder(clusterState).metaData(metaDataBuilder).build();
+    }
+
+    /**
+     * Reloads the state written since the last {@code start} or {@code reload}: the manifest is read again and only the global state
+     * and the index state files whose generations changed are parsed, the new cluster state shares everything else with the current
+     * one, see {@link MetaStateLoader#reloadFullState}. Returns false without loading anything if that is not possible because nothing
+     * was loaded yet, the state was loaded without a manifest or the lazy mode changed, {@code start} has to be called instead.
+     */
+    public boolean reload() throws IOException {
+        if (metaStateLoader == null || lazy != isLazy()) {
+            return false;
+        }
+        final long startNS = System.nanoTime();
+        if (isLazy()) {
+            final LazyMetaData reloaded = metaStateLoader.reloadLazyState(lazyMetaData);
+            if (reloaded == null) {
+                return false;
+            }
+            lazyMetaData = reloaded;
+        } else {
+            final Manifest previousManifest = incrementalClusterStateWriter.getPreviousManifest();
+            if (previousManifest.isEmpty()) {
+                return false;
+            }
+            final Tuple<Manifest, MetaData> reloaded = metaStateLoader.reloadFullState(previousManifest, getMetaData(), loadParallelism);
+            if (reloaded == null) {
+                return false;
+            }
+            final Manifest manifest = reloaded.v1();
+            final ClusterState clusterState = ClusterState.builder(incrementalClusterStateWriter.getPreviousClusterState().getClusterName())
+                .version(manifest.getClusterStateVersion())
+                .metaData(reloaded.v2()).build();
+            incrementalClusterStateWriter = newWriter(settings, metaStateService, manifest, initialStatePreparer.apply(clusterState),
+                relativeTimeMillisSupplier);
+            if (persistedState instanceof GatewayPersistedState) {
+                persistedState = new GatewayPersistedState(incrementalClusterStateWriter);
+            } else {
+                persistedState = new InMemoryPersistedState(manifest.getCurrentTerm(), clusterState);
+            }
+        }
+        lastLoadTime = TimeValue.timeValueMillis(TimeValue.nsecToMSec(System.nanoTime() - startNS));
+        logger.info("took {} to reload the state of [{}] indices", lastLoadTime, getManifest().getIndexGenerations().size());
+        return true;
+    }
+
+    /**
+     * Creates a writer with cluster settings of its own: the writer registers a settings update consumer on the cluster settings it is
+     * given, so on the long-lived ones of the node every replaced writer, and the cluster state it holds, would stay reachable. The
+     * updater never applies a cluster state, so the writer does not miss any update of its slow write threshold.
+     */
+    private static IncrementalClusterStateWriter newWriter(Settings settings, MetaStateService metaStateService, Manifest manifest,
+                                                           ClusterState clusterState, LongSupplier relativeTimeMillisSupplier) {
+        final ClusterSettings writerSettings = new ClusterSettings(settings,
+            Collections.singleton(IncrementalClusterStateWriter.SLOW_WRITE_LOGGING_THRESHOLD));
+        return new IncrementalClusterStateWriter(settings, writerSettings, metaStateService, manifest, clusterState,
+            relativeTimeMillisSupplier);
+    }
+
+    private void registerApplier(ClusterService clusterService) {
+        if (gatewayClusterApplier == null) {
+            gatewayClusterApplier = new GatewayClusterApplier(() -> incrementalClusterStateWriter);
+            clusterService.addLowPriorityApplier(gatewayClusterApplier);
+        }
+    }
+
+    private void setWriter(Settings settings, MetaStateService metaStateService,
+                           LongSupplier relativeTimeMillisSupplier, IncrementalClusterStateWriter incrementalClusterStateWriter) {
+        this.settings = settings;
+        this.metaStateService = metaStateService;
+        this.relativeTimeMillisSupplier = relativeTimeMillisSupplier;
+        this.incrementalClusterStateWriter = incrementalClusterStateWriter;
+    }
+
+    private boolean startLazy(MetaStateLoader metaStateLoader) {
+        this.metaStateLoader = metaStateLoader;
+        lazyMetaData = null;
+        if (lazy == false) {
+            return false;
+        }
+        final long startNS = System.nanoTime();
+        try {
+            lazyMetaData = metaStateLoader.loadLazyState();
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to load metadata", e);
+        }
+        if (lazyMetaData == null) {
+            logger.warn("no manifest file found, loading the full state instead of the lazy one");
+            return false;
+        }
+        lastLoadTime = TimeValue.timeValueMillis(TimeValue.nsecToMSec(System.nanoTime() - startNS));
+        logger.info("took {} to load manifest and global state of [{}] indices lazily", lastLoadTime, lazyMetaData.size());
+        metaStateService = metaStateLoader.getMetaStateService();
+        persistedState = null;
+        return true;
     }
 
     public void start(Node node) {
         Settings settings = node.settings();
         ClusterService clusterService = node.injector().getInstance(ClusterService.class);
         TransportService transportService = node.injector().getInstance(TransportService.class);
-        MetaStateService metaStateService = node.injector().getInstance(MetaStateService.class);
+        NamedXContentRegistry namedXContentRegistry = OpaqueCustom.passthrough(node.injector().getInstance(NamedXContentRegistry.class));
+        MetaStateService metaStateService = new ParallelMetaStateService(node.getNodeEnvironment(), namedXContentRegistry);
+        MetaStateLoader metaStateLoader = new MetaStateLoader(node.getNodeEnvironment(), namedXContentRegistry, metaStateService);
+        if (startLazy(metaStateLoader)) {
+            return;
+        }
         final Tuple<Manifest, ClusterState> manifestClusterStateTuple;
         try {
-            manifestClusterStateTuple = loadStateAndManifest(ClusterName.CLUSTER_NAME_SETTING.get(node.settings()), metaStateService);
+            manifestClusterStateTuple = loadStateAndManifest(ClusterName.CLUSTER_NAME_SETTING.get(node.settings()), metaStateLoader);
         } catch (IOException e) {
             throw new ElasticsearchException("failed to load metadata", e);
         }
-        final IncrementalClusterStateWriter incrementalClusterStateWriter
-                = new IncrementalClusterStateWriter(settings, clusterService.getClusterSettings(), metaStateService,
+        initialStatePreparer = state -> prepareInitialClusterState(transportService, clusterService, state);
+        final IncrementalClusterStateWriter incrementalClusterStateWriter = newWriter(settings, metaStateService,
                 manifestClusterStateTuple.v1(),
-                prepareInitialClusterState(transportService, clusterService, manifestClusterStateTuple.v2()),
+                initialStatePreparer.apply(manifestClusterStateTuple.v2()),
                 transportService.getThreadPool()::relativeTimeInMillis);
+        setWriter(settings, metaStateService, transportService.getThreadPool()::relativeTimeInMillis, incrementalClusterStateWriter);
 
         if (DiscoveryModule.DISCOVERY_TYPE_SETTING.get(settings).equals(DiscoveryModule.ZEN_DISCOVERY_TYPE)) {
             // only for tests that simulate mixed Zen1/Zen2 clusters, see Zen1IT
             if (isMasterOrDataNode(settings)) {
-                clusterService.addLowPriorityApplier(new GatewayClusterApplier(incrementalClusterStateWriter));
+                registerApplier(clusterService);
             }
             persistedState = new InMemoryPersistedState(manifestClusterStateTuple.v1().getCurrentTerm(), manifestClusterStateTuple.v2());
         } else if (!DiscoveryNode.isMasterNode(settings)) {
@@ -118,7 +345,7 @@ public class GatewayMetaState {
                 // state on master-ineligible data nodes is mostly ignored - it's only there to support dangling index imports, which is
                 // inherently unsafe anyway. Thus we can safely delay metadata writes on master-ineligible data nodes until applying the
                 // cluster state, which is what this does:
-                clusterService.addLowPriorityApplier(new GatewayClusterApplier(incrementalClusterStateWriter));
+                registerApplier(clusterService);
             }
 
             // Master-ineligible nodes do not need to persist the cluster state when accepting it because they are not in the voting
@@ -132,6 +359,46 @@ public class GatewayMetaState {
         }
     }
 
+    /**
+     * Loads the on-disk metadata without a {@link Node}: no plugins, injector, thread pool or transport service are created, only the
+     * {@link MetaStateService} over the given registry, customs it can not parse are kept as {@link OpaqueCustom}s. The local node is
+     * built from the node settings and the persisted node id. Unknown cluster settings are not archived here, because without plugins
+     * their settings are unknown and archiving them would be persisted on the next write.
+     */
+    public void start(Settings settings, NodeEnvironment nodeEnvironment, NamedXContentRegistry namedXContentRegistry) {
+        final DiscoveryNode localNode = DiscoveryNode.createLocal(settings,
+                new TransportAddress(TransportAddress.META_ADDRESS, 0), nodeEnvironment.nodeId());
+        final NamedXContentRegistry registry = OpaqueCustom.passthrough(namedXContentRegistry);
+        final MetaStateService metaStateService = new ParallelMetaStateService(nodeEnvironment, registry);
+        final MetaStateLoader metaStateLoader = new MetaStateLoader(nodeEnvironment, registry, metaStateService);
+        if (startLazy(metaStateLoader)) {
+            return;
+        }
+        final Tuple<Manifest, ClusterState> manifestClusterStateTuple;
+        try {
+            manifestClusterStateTuple = loadStateAndManifest(ClusterName.CLUSTER_NAME_SETTING.get(settings), metaStateLoader);
+        } catch (IOException e) {
+            throw new ElasticsearchException("failed to load metadata", e);
+        }
+        final Function<ClusterState, ClusterState> prepare = Function.<ClusterState>identity()
+            .andThen(ClusterStateUpdaters::addStateNotRecoveredBlock)
+            .andThen(state -> ClusterStateUpdaters.setLocalNode(state, localNode))
+            .andThen(ClusterStateUpdaters::recoverClusterBlocks);
+        initialStatePreparer = prepare::apply;
+        final ClusterState initialState = initialStatePreparer.apply(manifestClusterStateTuple.v2());
+        final IncrementalClusterStateWriter incrementalClusterStateWriter = newWriter(settings, metaStateService,
+                manifestClusterStateTuple.v1(), initialState, () -> TimeValue.nsecToMSec(System.nanoTime()));
+        setWriter(settings, metaStateService, () -> TimeValue.nsecToMSec(System.nanoTime()), incrementalClusterStateWriter);
+
+        if (DiscoveryModule.DISCOVERY_TYPE_SETTING.get(settings).equals(DiscoveryModule.ZEN_DISCOVERY_TYPE)
+                || DiscoveryNode.isMasterNode(settings) == false) {
+            // there is no cluster service to register a GatewayClusterApplier with, see start(Node) for the persistence rules
+            persistedState = new InMemoryPersistedState(manifestClusterStateTuple.v1().getCurrentTerm(), manifestClusterStateTuple.v2());
+        } else {
+            persistedState = new GatewayPersistedState(incrementalClusterStateWriter);
+        }
+    }
+
     public void start(Settings settings, TransportService transportService, ClusterService clusterService,
                       MetaStateService metaStateService, MetaDataIndexUpgradeService metaDataIndexUpgradeService,
                       MetaDataUpgrader metaDataUpgrader) {
@@ -242,17 +509,30 @@ public class GatewayMetaState {
         }
     }
 
-    private static Tuple<Manifest,ClusterState> loadStateAndManifest(
+    private Tuple<Manifest,ClusterState> loadStateAndManifest(
             ClusterName clusterName, MetaStateService metaStateService) throws IOException {
+        // no NodeEnvironment is at hand on this path, the state is loaded sequentially by the MetaStateService itself
+        return loadStateAndManifest(clusterName, metaStateService::loadFullState, 1);
+    }
+
+    private Tuple<Manifest,ClusterState> loadStateAndManifest(
+            ClusterName clusterName, MetaStateLoader metaStateLoader) throws IOException {
+        return loadStateAndManifest(clusterName, () -> metaStateLoader.loadFullState(loadParallelism), loadParallelism);
+    }
+
+    private Tuple<Manifest,ClusterState> loadStateAndManifest(ClusterName clusterName,
+            CheckedSupplier<Tuple<Manifest, MetaData>, IOException> loader, int parallelism) throws IOException {
         final long startNS = System.nanoTime();
-        final Tuple<Manifest, MetaData> manifestAndMetaData = metaStateService.loadFullState();
+        final Tuple<Manifest, MetaData> manifestAndMetaData = loader.get();
         final Manifest manifest = manifestAndMetaData.v1();
 
         final ClusterState clusterState = ClusterState.builder(clusterName)
             .version(manifest.getClusterStateVersion())
             .metaData(manifestAndMetaData.v2()).build();
 
-        logger.debug("took {} to load state", TimeValue.timeValueMillis(TimeValue.nsecToMSec(System.nanoTime() - startNS)));
+        lastLoadTime = TimeValue.timeValueMillis(TimeValue.nsecToMSec(System.nanoTime() - startNS));
+        logger.info("took {} to load state of [{}] indices with parallelism [{}]",
+            lastLoadTime, manifest.getIndexGenerations().size(), parallelism);
 
         return Tuple.tuple(manifest, clusterState);
     }
@@ -313,14 +593,23 @@ public class GatewayMetaState {
 
     private static class GatewayClusterApplier implements ClusterStateApplier {
 
-        private final IncrementalClusterStateWriter incrementalClusterStateWriter;
+        private final Supplier<IncrementalClusterStateWriter> incrementalClusterStateWriterSupplier;
 
         private GatewayClusterApplier(IncrementalClusterStateWriter incrementalClusterStateWriter) {
-            this.incrementalClusterStateWriter = incrementalClusterStateWriter;
+            this(() -> incrementalClusterStateWriter);
+        }
+
+        private GatewayClusterApplier(Supplier<IncrementalClusterStateWriter> incrementalClusterStateWriterSupplier) {
+            this.incrementalClusterStateWriterSupplier = incrementalClusterStateWriterSupplier;
         }
 
         @Override
         public void applyClusterState(ClusterChangedEvent event) {
+            final IncrementalClusterStateWriter incrementalClusterStateWriter = incrementalClusterStateWriterSupplier.get();
+            if (incrementalClusterStateWriter == null) {
+                // loaded lazily, there is no writer
+                return;
+            }
             if (event.state().blocks().disableStatePersistence()) {
                 incrementalClusterStateWriter.setIncrementalWrite(false);
                 return;
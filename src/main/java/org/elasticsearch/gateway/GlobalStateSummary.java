@@ -0,0 +1,133 @@
+package org.elasticsearch.gateway;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The names of the customs and the keys of the persistent settings of the global state file, read without a registry, so that they
+ * are known before the plugins that parse them are loaded. The state file is the one of the manifest, or the latest one of a node
+ * without a manifest.
+ */
+public final class GlobalStateSummary {
+
+    private static final Logger logger = LogManager.getLogger(GlobalStateSummary.class);
+
+    private static final GlobalStateSummary EMPTY = new GlobalStateSummary();
+
+    private static final MetaDataStateFormat<GlobalStateSummary> FORMAT =
+            new MetaDataStateFormat<GlobalStateSummary>(MetaData.GLOBAL_STATE_FILE_PREFIX) {
+
+                @Override
+                public void toXContent(XContentBuilder builder, GlobalStateSummary state) {
+                    throw new UnsupportedOperationException("the global state summary is read only");
+                }
+
+                @Override
+                public GlobalStateSummary fromXContent(XContentParser parser) throws IOException {
+                    return GlobalStateSummary.fromXContent(parser);
+                }
+            };
+
+    private final Set<String> customs = new TreeSet<>();
+    private final Set<String> persistentSettings = new TreeSet<>();
+
+    private GlobalStateSummary() {
+    }
+
+    /**
+     * Returns the summary of the global state of the node, an empty one if the node has no global state yet.
+     */
+    public static GlobalStateSummary load(Path... nodeDataPaths) throws IOException {
+        final Manifest manifest = MappedStateReader.loadLatestState(Manifest.FORMAT, logger, NamedXContentRegistry.EMPTY, nodeDataPaths);
+        final GlobalStateSummary summary;
+        if (manifest == null) {
+            summary = MappedStateReader.loadLatestState(FORMAT, logger, NamedXContentRegistry.EMPTY, nodeDataPaths);
+        } else if (manifest.isGlobalGenerationMissing()) {
+            summary = null;
+        } else {
+            summary = MappedStateReader.loadGeneration(FORMAT, logger, NamedXContentRegistry.EMPTY, manifest.getGlobalGeneration(),
+                    nodeDataPaths);
+            if (summary == null) {
+                throw new IOException("failed to find global metadata [generation: " + manifest.getGlobalGeneration() + "]");
+            }
+        }
+        return summary == null ? EMPTY : summary;
+    }
+
+    /**
+     * The names of the {@link MetaData.Custom}s of the global state, including the ones registered by the core
+     */
+    public Set<String> getCustoms() {
+        return Collections.unmodifiableSet(customs);
+    }
+
+    /**
+     * The keys of the persistent settings, nested settings are flattened
+     */
+    public Set<String> getPersistentSettings() {
+        return Collections.unmodifiableSet(persistentSettings);
+    }
+
+    private static GlobalStateSummary fromXContent(XContentParser parser) throws IOException {
+        final GlobalStateSummary summary = new GlobalStateSummary();
+        XContentParser.Token token = parser.currentToken();
+        if (token == null) {
+            token = parser.nextToken();
+        }
+        if (token == XContentParser.Token.START_OBJECT) {
+            token = parser.nextToken();
+        }
+        if (token != XContentParser.Token.FIELD_NAME || "meta-data".equals(parser.currentName()) == false) {
+            throw new IllegalArgumentException("Expected [meta-data] as a field name but got " + parser.currentName());
+        }
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalArgumentException("Expected a START_OBJECT but got " + parser.currentToken());
+        }
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token != XContentParser.Token.FIELD_NAME) {
+                throw new IllegalArgumentException("Unexpected token " + token);
+            }
+            final String name = parser.currentName();
+            token = parser.nextToken();
+            if (token == XContentParser.Token.START_OBJECT) {
+                if ("settings".equals(name)) {
+                    readSettingKeys(parser, "", summary.persistentSettings);
+                } else {
+                    if ("cluster_coordination".equals(name) == false && "templates".equals(name) == false) {
+                        summary.customs.add(name);
+                    }
+                    parser.skipChildren();
+                }
+            } else if (token == XContentParser.Token.START_ARRAY) {
+                parser.skipChildren();
+            }
+        }
+        return summary;
+    }
+
+    private static void readSettingKeys(XContentParser parser, String prefix, Set<String> keys) throws IOException {
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            final String key = prefix + parser.currentName();
+            token = parser.nextToken();
+            if (token == XContentParser.Token.START_OBJECT) {
+                readSettingKeys(parser, key + ".", keys);
+            } else {
+                // list settings are arrays
+                parser.skipChildren();
+                keys.add(key);
+            }
+        }
+    }
+}
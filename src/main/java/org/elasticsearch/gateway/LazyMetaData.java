@@ -0,0 +1,89 @@
+package org.elasticsearch.gateway;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * A view of the on-disk metadata that holds the {@link Manifest} and the global {@link MetaData} only. Index names and UUIDs come from
+ * the manifest's index generations, and an {@code indices/{index_uuid}/_state/state-N.st} file is parsed only when its
+ * {@link IndexMetaData} is asked for. Nothing is cached, so memory stays bounded by what the caller keeps.
+ */
+public class LazyMetaData implements Iterable<IndexMetaData> {
+
+    private final Manifest manifest;
+    private final MetaData globalMetaData;
+    private final MetaStateLoader metaStateLoader;
+
+    LazyMetaData(Manifest manifest, MetaData globalMetaData, MetaStateLoader metaStateLoader) {
+        this.manifest = manifest;
+        this.globalMetaData = globalMetaData;
+        this.metaStateLoader = metaStateLoader;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Returns the global state, its {@link MetaData#indices()} are always empty.
+     */
+    public MetaData getGlobalMetaData() {
+        return globalMetaData;
+    }
+
+    public int size() {
+        return manifest.getIndexGenerations().size();
+    }
+
+    public Set<Index> indices() {
+        return manifest.getIndexGenerations().keySet();
+    }
+
+    /**
+     * Reads and parses the state file of the given index at the generation referenced by the manifest.
+     */
+    public IndexMetaData get(Index index) throws IOException {
+        final Long generation = manifest.getIndexGenerations().get(index);
+        if (generation == null) {
+            throw new IllegalArgumentException("index " + index + " is not in the manifest");
+        }
+        return metaStateLoader.loadIndex(index, generation);
+    }
+
+    /**
+     * Returns a copy of this view pointing at a newly written manifest, with the same global state.
+     */
+    LazyMetaData withManifest(Manifest newManifest) {
+        return new LazyMetaData(newManifest, globalMetaData, metaStateLoader);
+    }
+
+    /**
+     * Iterates over the indices, parsing each state file when it is reached.
+     */
+    @Override
+    public Iterator<IndexMetaData> iterator() {
+        final Iterator<Index> indices = manifest.getIndexGenerations().keySet().iterator();
+        return new Iterator<IndexMetaData>() {
+            @Override
+            public boolean hasNext() {
+                return indices.hasNext();
+            }
+
+            @Override
+            public IndexMetaData next() {
+                try {
+                    return get(indices.next());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
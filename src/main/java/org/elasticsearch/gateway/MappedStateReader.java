@@ -0,0 +1,338 @@
+package org.elasticsearch.gateway;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.apache.lucene.codecs.CodecUtil;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.common.CheckedFunction;
+import org.elasticsearch.common.io.stream.ByteBufferStreamInput;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Reads state files the same way as {@link MetaDataStateFormat#read}, {@link MetaDataStateFormat#loadGeneration} and
+ * {@link MetaDataStateFormat#loadLatestState}, but without Lucene's buffered index inputs: every file is read into a single buffer, its
+ * footer checksum and header are verified on that buffer and the parser reads the content straight from it. Files of at least
+ * {@code -Dupdater.mmap.threshold} bytes are memory mapped and unmapped as soon as they are parsed, smaller ones, which are most of the
+ * index state files, are read with one call into a heap buffer reused by the reading thread, which the parser then uses as its input.
+ */
+public final class MappedStateReader {
+
+    private static final Logger logger = LogManager.getLogger(MappedStateReader.class);
+
+    /**
+     * -Dupdater.mmap.threshold=1mb: the size from which state files are memory mapped, -1 never maps them
+     */
+    static final String MMAP_THRESHOLD_PROPERTY = "updater.mmap.threshold";
+
+    private static final long MMAP_THRESHOLD = ByteSizeValue.parseBytesSizeValue(
+            System.getProperty(MMAP_THRESHOLD_PROPERTY, "1mb"), MMAP_THRESHOLD_PROPERTY).getBytes();
+
+    // larger files read into the heap get a buffer of their own, so that no thread keeps one of their size
+    private static final int MAX_REUSED_BUFFER = 1 << 20;
+
+    private static final ThreadLocal<ByteBuffer> REUSED_BUFFER = new ThreadLocal<>();
+
+    private static final Consumer<ByteBuffer> UNMAPPER = unmapper();
+
+    private static final byte[] STATE_FILE_CODEC = ParallelStateWriter.STATE_FILE_CODEC.getBytes(StandardCharsets.UTF_8);
+
+    // magic, codec name length and codec name, version, x-content type
+    private static final int HEADER_LENGTH = Integer.BYTES + 1 + STATE_FILE_CODEC.length + Integer.BYTES + Integer.BYTES;
+
+    private MappedStateReader() {
+    }
+
+    /**
+     * Like {@link MetaDataStateFormat#loadLatestState}, returns null if there is no state file of the format.
+     */
+    public static <T> T loadLatestState(MetaDataStateFormat<T> format, Logger logger, NamedXContentRegistry namedXContentRegistry,
+                                        Path... dataLocations) throws IOException {
+        final long generation = ParallelStateWriter.findMaxGenerationId(format.getPrefix(), dataLocations);
+        final T state = loadGeneration(format, logger, namedXContentRegistry, generation, dataLocations);
+        if (generation > -1 && state == null) {
+            throw new IllegalStateException("unable to find state files with generation id " + generation +
+                    " returned by findMaxGenerationId function, in data folders [" +
+                    Arrays.stream(dataLocations).map(Path::toAbsolutePath).map(Object::toString).collect(Collectors.joining(", ")) +
+                    "], concurrent writes?");
+        }
+        return state;
+    }
+
+    /**
+     * Like {@link MetaDataStateFormat#loadGeneration}, reads the state file of the generation from the first data location it can be
+     * read from, returns null if no data location has it.
+     */
+    public static <T> T loadGeneration(MetaDataStateFormat<T> format, Logger logger, NamedXContentRegistry namedXContentRegistry,
+                                       long generation, Path... dataLocations) {
+        return loadGeneration(format, logger, generation, file -> read(format, namedXContentRegistry, file), dataLocations);
+    }
+
+    /**
+     * Like {@link #loadGeneration(MetaDataStateFormat, Logger, NamedXContentRegistry, long, Path...)}, but hands the parser of the
+     * content to {@code reader} instead of parsing the state, so that the content can be consumed without building the state.
+     */
+    public static <T> T loadGeneration(MetaDataStateFormat<?> format, Logger logger, CheckedFunction<XContentParser, T, IOException> reader,
+                                       long generation, Path... dataLocations) {
+        return loadGeneration(format, logger, generation, file -> read(NamedXContentRegistry.EMPTY, file, reader), dataLocations);
+    }
+
+    private static <T> T loadGeneration(MetaDataStateFormat<?> format, Logger logger, long generation,
+                                        CheckedFunction<Path, T, IOException> reader, Path... dataLocations) {
+        final List<Path> stateFiles = new ArrayList<>();
+        if (generation > -1) {
+            final String fileName = format.getStateFileName(generation);
+            for (Path dataLocation : dataLocations) {
+                final Path stateFile = dataLocation.resolve(MetaDataStateFormat.STATE_DIR_NAME).resolve(fileName);
+                if (Files.exists(stateFile)) {
+                    stateFiles.add(stateFile);
+                }
+            }
+        }
+
+        final List<Throwable> exceptions = new ArrayList<>();
+        for (Path stateFile : stateFiles) {
+            try {
+                final T state = reader.apply(stateFile);
+                logger.trace("generation id [{}] read from [{}]", generation, stateFile.getFileName());
+                return state;
+            } catch (Exception e) {
+                exceptions.add(new IOException("failed to read " + stateFile, e));
+                logger.debug(() -> new ParameterizedMessage("{}: failed to read [{}], ignoring...", stateFile, format.getPrefix()), e);
+            }
+        }
+        ExceptionsHelper.maybeThrowRuntimeAndSuppress(exceptions);
+        if (stateFiles.size() > 0) {
+            // there are state files, but none of them could be read
+            throw new IllegalStateException("Could not find a state file to recover from among " +
+                    stateFiles.stream().map(Path::toAbsolutePath).map(Object::toString).collect(Collectors.joining(", ")));
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link MetaDataStateFormat#read}, throws a {@link CorruptStateException} if the checksum, header or length of the file is
+     * wrong.
+     */
+    public static <T> T read(MetaDataStateFormat<T> format, NamedXContentRegistry namedXContentRegistry, Path file) throws IOException {
+        return read(namedXContentRegistry, file, format::fromXContent);
+    }
+
+    /**
+     * Verifies the state file like {@link #read(MetaDataStateFormat, NamedXContentRegistry, Path)} and hands the parser of its content
+     * to {@code reader}. The parser is only valid until {@code reader} returns.
+     */
+    public static <T> T read(NamedXContentRegistry namedXContentRegistry, Path file, CheckedFunction<XContentParser, T, IOException> reader)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new CorruptStateException("state file [" + file + "] is too large: " + size + " bytes");
+            }
+            if (MMAP_THRESHOLD >= 0 && size >= MMAP_THRESHOLD) {
+                final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                try {
+                    return parse(reader, namedXContentRegistry, file, buffer);
+                } finally {
+                    // the parsed state copies everything it keeps and the parser is closed, nothing refers to the mapping anymore
+                    unmap(buffer);
+                }
+            }
+            final ByteBuffer buffer = heapBuffer((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    throw new EOFException("state file [" + file + "] is shorter than its size of " + size + " bytes");
+                }
+            }
+            buffer.flip();
+            return parse(reader, namedXContentRegistry, file, buffer);
+        }
+    }
+
+    private static <T> T parse(CheckedFunction<XContentParser, T, IOException> reader, NamedXContentRegistry namedXContentRegistry,
+                               Path file, ByteBuffer buffer) throws IOException {
+        final int length = buffer.remaining();
+        final int footer = length - CodecUtil.footerLength();
+        if (footer < 0) {
+            throw new CorruptStateException("state file [" + file + "] is truncated: " + length + " bytes");
+        }
+
+        final long expectedChecksum = readFooter(file, buffer, footer);
+        final CRC32 crc = new CRC32();
+        final ByteBuffer checksummed = buffer.duplicate();
+        checksummed.limit(length - Long.BYTES);
+        crc.update(checksummed);
+        if (crc.getValue() != expectedChecksum) {
+            throw new CorruptStateException("checksum failed (hardware problem?) in state file [" + file + "]: expected=" +
+                    Long.toHexString(expectedChecksum) + " actual=" + Long.toHexString(crc.getValue()));
+        }
+        final int position = readHeader(file, buffer, footer);
+
+        try (XContentParser parser = createParser(MetaDataStateFormat.FORMAT, namedXContentRegistry, buffer, position, footer)) {
+            return reader.apply(parser);
+        }
+    }
+
+    /**
+     * Checks the header and footer of the state file and returns the checksum recorded in its footer. Only these are read, neither the
+     * checksum nor the content of the file are verified.
+     */
+    public static long readChecksum(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size < HEADER_LENGTH + CodecUtil.footerLength()) {
+                throw new CorruptStateException("state file [" + file + "] is truncated: " + size + " bytes");
+            }
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            readFully(channel, header, 0, file);
+            readHeader(file, header, HEADER_LENGTH);
+            final ByteBuffer footer = ByteBuffer.allocate(CodecUtil.footerLength());
+            readFully(channel, footer, size - CodecUtil.footerLength(), file);
+            return readFooter(file, footer, 0);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path file) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of state file [" + file + "]");
+            }
+        }
+    }
+
+    /**
+     * Checks the footer starting at {@code footer}: the magic, the id of the algorithm (always 0) and the CRC32 of everything before
+     * the checksum, which is returned.
+     */
+    private static long readFooter(Path file, ByteBuffer buffer, int footer) throws CorruptStateException {
+        if (buffer.getInt(footer) != CodecUtil.FOOTER_MAGIC) {
+            throw new CorruptStateException("codec footer mismatch in state file [" + file + "]: actual footer=" +
+                    buffer.getInt(footer) + " vs expected footer=" + CodecUtil.FOOTER_MAGIC);
+        }
+        if (buffer.getInt(footer + Integer.BYTES) != 0) {
+            throw new CorruptStateException("codec footer mismatch in state file [" + file + "]: unknown algorithmID: " +
+                    buffer.getInt(footer + Integer.BYTES));
+        }
+        final long checksum = buffer.getLong(footer + 2 * Integer.BYTES);
+        if ((checksum & 0xFFFFFFFF00000000L) != 0) {
+            throw new CorruptStateException("illegal CRC-32 checksum in state file [" + file + "]: " + checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * Checks the header, the magic, the codec name as a vint prefixed string and the version, and the x-content type following it,
+     * none of which may reach {@code limit}. Returns the position of the content.
+     */
+    private static int readHeader(Path file, ByteBuffer buffer, int limit) throws CorruptStateException {
+        int position = 0;
+        if (limit < Integer.BYTES || buffer.getInt(position) != CodecUtil.CODEC_MAGIC) {
+            throw new CorruptStateException("codec header mismatch in state file [" + file + "]");
+        }
+        position += Integer.BYTES;
+        final int codecLength = buffer.get(position++);
+        if (codecLength != STATE_FILE_CODEC.length || position + codecLength + 2 * Integer.BYTES > limit) {
+            throw new CorruptStateException("codec mismatch in state file [" + file + "]: expected codec=" +
+                    ParallelStateWriter.STATE_FILE_CODEC);
+        }
+        for (byte b : STATE_FILE_CODEC) {
+            if (buffer.get(position++) != b) {
+                throw new CorruptStateException("codec mismatch in state file [" + file + "]: expected codec=" +
+                        ParallelStateWriter.STATE_FILE_CODEC);
+            }
+        }
+        final int version = buffer.getInt(position);
+        if (version != ParallelStateWriter.STATE_FILE_VERSION) {
+            throw new CorruptStateException("unsupported version " + version + " of state file [" + file + "], expected " +
+                    ParallelStateWriter.STATE_FILE_VERSION);
+        }
+        position += Integer.BYTES;
+        final int xContentTypeOrdinal = buffer.getInt(position);
+        if (xContentTypeOrdinal < 0 || xContentTypeOrdinal >= XContentType.values().length) {
+            throw new CorruptStateException("unknown x-content type " + xContentTypeOrdinal + " in state file [" + file + "]");
+        }
+        final XContentType xContentType = XContentType.values()[xContentTypeOrdinal];
+        if (xContentType != MetaDataStateFormat.FORMAT) {
+            throw new IllegalStateException("expected state in " + file + " to be " + MetaDataStateFormat.FORMAT +
+                    " format but was " + xContentType);
+        }
+        return position + Integer.BYTES;
+    }
+
+    private static XContentParser createParser(XContentType xContentType, NamedXContentRegistry namedXContentRegistry, ByteBuffer buffer,
+                                               int from, int to) throws IOException {
+        if (buffer.hasArray()) {
+            return xContentType.xContent().createParser(namedXContentRegistry, LoggingDeprecationHandler.INSTANCE,
+                    buffer.array(), buffer.arrayOffset() + from, to - from);
+        }
+        // jackson only reads arrays and streams, a mapped file is streamed in chunks of its own buffer size
+        final ByteBuffer content = buffer.duplicate();
+        content.position(from).limit(to);
+        return xContentType.xContent().createParser(namedXContentRegistry, LoggingDeprecationHandler.INSTANCE,
+                new ByteBufferStreamInput(content));
+    }
+
+    private static ByteBuffer heapBuffer(int size) {
+        if (size > MAX_REUSED_BUFFER) {
+            return ByteBuffer.allocate(size);
+        }
+        ByteBuffer buffer = REUSED_BUFFER.get();
+        if (buffer == null || buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.min(MAX_REUSED_BUFFER, Math.max(size, 64 * 1024)));
+            REUSED_BUFFER.set(buffer);
+        }
+        buffer.clear().limit(size);
+        return buffer;
+    }
+
+    private static void unmap(MappedByteBuffer buffer) {
+        if (UNMAPPER != null) {
+            UNMAPPER.accept(buffer);
+        }
+    }
+
+    /**
+     * Returns a function releasing a mapping right away rather than when the buffer is collected, or null if the JVM does not allow it.
+     */
+    private static Consumer<ByteBuffer> unmapper() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            final Object unsafe = field.get(null);
+            final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            return buffer -> {
+                try {
+                    invokeCleaner.invoke(unsafe, buffer);
+                } catch (ReflectiveOperationException e) {
+                    logger.debug("failed to unmap a state file, it is released when the buffer is collected", e);
+                }
+            };
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            logger.debug("mapped state files can not be unmapped explicitly, they are released when the buffers are collected", e);
+            return null;
+        }
+    }
+}
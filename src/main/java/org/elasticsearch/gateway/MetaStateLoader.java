@@ -0,0 +1,198 @@
+package org.elasticsearch.gateway;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
+/**
+ * Loads the manifest, global and index state files the same way as {@link MetaStateService#loadFullState()}, but reads them through
+ * {@link MappedStateReader} and the per-index state files on a bounded {@link ForkJoinPool} when the parallelism is greater than one.
+ */
+public class MetaStateLoader {
+
+    private static final Logger logger = LogManager.getLogger(MetaStateLoader.class);
+
+    private final NodeEnvironment nodeEnv;
+    private final NamedXContentRegistry namedXContentRegistry;
+    private final MetaStateService metaStateService;
+
+    public MetaStateLoader(NodeEnvironment nodeEnv, NamedXContentRegistry namedXContentRegistry, MetaStateService metaStateService) {
+        this.nodeEnv = nodeEnv;
+        this.namedXContentRegistry = namedXContentRegistry;
+        this.metaStateService = metaStateService;
+    }
+
+    public MetaStateService getMetaStateService() {
+        return metaStateService;
+    }
+
+    /**
+     * Loads the full state, reading the index state files with the given parallelism. A node without a manifest, which needs the BWC
+     * loading path, falls back to {@link MetaStateService#loadFullState()}.
+     */
+    public Tuple<Manifest, MetaData> loadFullState(int parallelism) throws IOException {
+        final Manifest manifest = MappedStateReader.loadLatestState(Manifest.FORMAT, logger, namedXContentRegistry,
+                nodeEnv.nodeDataPaths());
+        if (manifest == null) {
+            return metaStateService.loadFullState();
+        }
+
+        final MetaData.Builder metaDataBuilder = loadGlobalState(manifest);
+        for (IndexMetaData indexMetaData : loadIndices(manifest.getIndexGenerations().entrySet(), parallelism)) {
+            metaDataBuilder.put(indexMetaData, false);
+        }
+
+        return new Tuple<>(manifest, metaDataBuilder.build());
+    }
+
+    /**
+     * Loads the state of the latest manifest like {@link #loadFullState(int)}, but only parses the state files written since
+     * {@code previousManifest}: the global state and every index whose generation did not change are taken from {@code previousMetaData},
+     * so the returned metadata shares them. Returns {@code null} if there is no manifest file.
+     */
+    public Tuple<Manifest, MetaData> reloadFullState(Manifest previousManifest, MetaData previousMetaData, int parallelism)
+            throws IOException {
+        final Manifest manifest = MappedStateReader.loadLatestState(Manifest.FORMAT, logger, namedXContentRegistry,
+                nodeEnv.nodeDataPaths());
+        if (manifest == null) {
+            return null;
+        }
+
+        final boolean globalChanged = manifest.isGlobalGenerationMissing()
+                || manifest.getGlobalGeneration() != previousManifest.getGlobalGeneration();
+        final MetaData.Builder metaDataBuilder = globalChanged ? loadGlobalState(manifest) : MetaData.builder(previousMetaData);
+        final List<Map.Entry<Index, Long>> changed = new ArrayList<>();
+        for (Map.Entry<Index, Long> entry : manifest.getIndexGenerations().entrySet()) {
+            // index(Index) also checks the uuid, a recreated index is never reused
+            final IndexMetaData previous = previousMetaData.index(entry.getKey());
+            if (previous != null && entry.getValue().equals(previousManifest.getIndexGenerations().get(entry.getKey()))) {
+                if (globalChanged) {
+                    metaDataBuilder.put(previous, false);
+                }
+            } else {
+                changed.add(entry);
+            }
+        }
+        if (globalChanged == false) {
+            for (IndexMetaData previous : previousMetaData) {
+                if (manifest.getIndexGenerations().containsKey(previous.getIndex()) == false) {
+                    metaDataBuilder.remove(previous.getIndex().getName());
+                }
+            }
+        }
+        for (IndexMetaData indexMetaData : loadIndices(changed, parallelism)) {
+            metaDataBuilder.put(indexMetaData, false);
+        }
+        logger.info("re-read [{}] of [{}] index state files, {} the global state", changed.size(),
+                manifest.getIndexGenerations().size(), globalChanged ? "re-read" : "reused");
+
+        return new Tuple<>(manifest, metaDataBuilder.build());
+    }
+
+    private List<IndexMetaData> loadIndices(Collection<Map.Entry<Index, Long>> generations, int parallelism) throws IOException {
+        if (parallelism <= 1 || generations.size() <= 1) {
+            final List<IndexMetaData> indices = new ArrayList<>(generations.size());
+            for (Map.Entry<Index, Long> entry : generations) {
+                indices.add(loadIndex(entry.getKey(), entry.getValue()));
+            }
+            return indices;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(() -> generations.parallelStream()
+                    .map(this::loadIndex)
+                    .collect(Collectors.toList())).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading index metadata", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("failed to load index metadata", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Loads the manifest and the global state only, the index state files are read on demand through the returned view.
+     * Returns {@code null} if there is no manifest file, in which case the full state has to be loaded.
+     */
+    public LazyMetaData loadLazyState() throws IOException {
+        final Manifest manifest = MappedStateReader.loadLatestState(Manifest.FORMAT, logger, namedXContentRegistry,
+                nodeEnv.nodeDataPaths());
+        if (manifest == null) {
+            return null;
+        }
+        return new LazyMetaData(manifest, loadGlobalState(manifest).build(), this);
+    }
+
+    /**
+     * Returns the lazy view of the latest manifest, keeping the global state of {@code previous} if its generation did not change, or
+     * {@code null} if there is no manifest file.
+     */
+    public LazyMetaData reloadLazyState(LazyMetaData previous) throws IOException {
+        final Manifest manifest = MappedStateReader.loadLatestState(Manifest.FORMAT, logger, namedXContentRegistry,
+                nodeEnv.nodeDataPaths());
+        if (manifest == null) {
+            return null;
+        }
+        if (manifest.isGlobalGenerationMissing() == false
+                && manifest.getGlobalGeneration() == previous.getManifest().getGlobalGeneration()) {
+            return previous.withManifest(manifest);
+        }
+        return new LazyMetaData(manifest, loadGlobalState(manifest).build(), this);
+    }
+
+    private MetaData.Builder loadGlobalState(Manifest manifest) throws IOException {
+        final MetaData.Builder metaDataBuilder;
+        if (manifest.isGlobalGenerationMissing()) {
+            metaDataBuilder = MetaData.builder();
+        } else {
+            final MetaData globalMetaData = MappedStateReader.loadGeneration(MetaData.FORMAT, logger, namedXContentRegistry,
+                    manifest.getGlobalGeneration(), nodeEnv.nodeDataPaths());
+            if (globalMetaData != null) {
+                metaDataBuilder = MetaData.builder(globalMetaData);
+            } else {
+                throw new IOException("failed to find global metadata [generation: " + manifest.getGlobalGeneration() + "]");
+            }
+        }
+        return metaDataBuilder;
+    }
+
+    private IndexMetaData loadIndex(Map.Entry<Index, Long> entry) {
+        try {
+            return loadIndex(entry.getKey(), entry.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    IndexMetaData loadIndex(Index index, long generation) throws IOException {
+        final String indexFolderName = index.getUUID();
+        final IndexMetaData indexMetaData = MappedStateReader.loadGeneration(IndexMetaData.FORMAT, logger, namedXContentRegistry,
+                generation, nodeEnv.resolveIndexFolder(indexFolderName));
+        if (indexMetaData == null) {
+            throw new IOException("failed to find metadata for existing index " + index.getName() + " [location: " + indexFolderName +
+                    ", generation: " + generation + "]");
+        }
+        return indexMetaData;
+    }
+}
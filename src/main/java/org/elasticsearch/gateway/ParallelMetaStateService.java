@@ -0,0 +1,62 @@
+package org.elasticsearch.gateway;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+
+/**
+ * A {@link MetaStateService} that writes the manifest, global and index state files to all data paths at the same time through
+ * {@link ParallelStateWriter}. Loading and cleanup are inherited.
+ */
+public class ParallelMetaStateService extends MetaStateService {
+
+    private static final Logger logger = LogManager.getLogger(ParallelMetaStateService.class);
+
+    private final NodeEnvironment nodeEnv;
+
+    public ParallelMetaStateService(NodeEnvironment nodeEnv, NamedXContentRegistry namedXContentRegistry) {
+        super(nodeEnv, namedXContentRegistry);
+        this.nodeEnv = nodeEnv;
+    }
+
+    @Override
+    public void writeManifestAndCleanup(String reason, Manifest manifest) throws WriteStateException {
+        logger.trace("[_meta] writing state, reason [{}]", reason);
+        try {
+            long generation = ParallelStateWriter.writeAndCleanup(MANIFEST_FORMAT, manifest, nodeEnv.nodeDataPaths());
+            logger.trace("[_meta] state written (generation: {})", generation);
+        } catch (WriteStateException ex) {
+            throw new WriteStateException(ex.isDirty(), "[_meta]: failed to write meta state", ex);
+        }
+    }
+
+    @Override
+    public long writeIndex(String reason, IndexMetaData indexMetaData) throws WriteStateException {
+        final Index index = indexMetaData.getIndex();
+        logger.trace("[{}] writing state, reason [{}]", index, reason);
+        try {
+            long generation = ParallelStateWriter.write(INDEX_META_DATA_FORMAT, indexMetaData, nodeEnv.indexPaths(index));
+            logger.trace("[{}] state written", index);
+            return generation;
+        } catch (WriteStateException ex) {
+            throw new WriteStateException(false, "[" + index + "]: failed to write index state", ex);
+        }
+    }
+
+    @Override
+    long writeGlobalState(String reason, MetaData metaData) throws WriteStateException {
+        logger.trace("[_global] writing state, reason [{}]", reason);
+        try {
+            long generation = ParallelStateWriter.write(META_DATA_FORMAT, metaData, nodeEnv.nodeDataPaths());
+            logger.trace("[_global] state written");
+            return generation;
+        } catch (WriteStateException ex) {
+            throw new WriteStateException(false, "[_global]: failed to write global state", ex);
+        }
+    }
+}
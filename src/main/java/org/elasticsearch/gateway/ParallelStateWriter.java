@@ -0,0 +1,250 @@
+package org.elasticsearch.gateway;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.elasticsearch.common.lucene.store.IndexOutputOutputStream;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.core.internal.io.IOUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes a state file to several data paths the same way as {@link MetaDataStateFormat#write} and
+ * {@link MetaDataStateFormat#writeAndCleanup}, but serializes the state once and copies and fsyncs the tmp file of every data path
+ * at the same time. The tmp files are renamed only after all data paths have been written, so the all-or-nothing semantics and the
+ * {@link WriteStateException#isDirty()} flags are the same as in the sequential implementation.
+ */
+public class ParallelStateWriter {
+
+    static final String STATE_FILE_CODEC = "state";
+    static final int STATE_FILE_VERSION = 1;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(EsExecutors.daemonThreadFactory("state_writer"));
+
+    private ParallelStateWriter() {
+    }
+
+    public static <T> long write(MetaDataStateFormat<T> format, T state, Path... locations) throws WriteStateException {
+        return write(format, state, false, locations);
+    }
+
+    public static <T> long writeAndCleanup(MetaDataStateFormat<T> format, T state, Path... locations) throws WriteStateException {
+        return write(format, state, true, locations);
+    }
+
+    private static <T> long write(MetaDataStateFormat<T> format, T state, boolean cleanup, Path... locations)
+            throws WriteStateException {
+        if (locations == null) {
+            throw new IllegalArgumentException("Locations must not be null");
+        }
+        if (locations.length <= 0) {
+            throw new IllegalArgumentException("One or more locations required");
+        }
+        if (locations.length == 1) {
+            return cleanup ? format.writeAndCleanup(state, locations) : format.write(state, locations);
+        }
+
+        final long oldGenerationId, newGenerationId;
+        try {
+            oldGenerationId = findMaxGenerationId(format.getPrefix(), locations);
+            newGenerationId = oldGenerationId + 1;
+        } catch (Exception e) {
+            throw new WriteStateException(false, "exception during looking up new generation id", e);
+        }
+        assert newGenerationId >= 0 : "newGenerationId must be positive but was: [" + oldGenerationId + "]";
+
+        final String fileName = format.getStateFileName(newGenerationId);
+        final String tmpFileName = fileName + ".tmp";
+        final List<Directory> directories = new ArrayList<>(locations.length);
+
+        try (Directory source = new ByteBuffersDirectory()) {
+            writeStateToMemory(format, state, source, tmpFileName);
+            for (Path location : locations) {
+                final Path stateLocation = location.resolve(MetaDataStateFormat.STATE_DIR_NAME);
+                try {
+                    directories.add(format.newDirectory(stateLocation));
+                } catch (IOException e) {
+                    throw new WriteStateException(false, "failed to open state directory " + stateLocation, e);
+                }
+            }
+
+            // every data path gets its tmp file written and fsynced concurrently, nothing is visible before all of them succeeded
+            forEachLocation(directories, i -> {
+                final Directory directory = directories.get(i);
+                deleteFileIfExists(directory, tmpFileName);
+                directory.copyFrom(source, tmpFileName, tmpFileName, IOContext.DEFAULT);
+                directory.sync(Collections.singleton(tmpFileName));
+            }, (i, e) -> new WriteStateException(false, "failed to write tmp state file to location " + locations[i], e));
+
+            performRenames(tmpFileName, fileName, directories, locations);
+
+            forEachLocation(directories, i -> directories.get(i).syncMetaData(),
+                    (i, e) -> new WriteStateException(true, "meta data directory fsync has failed " + locations[i], e));
+        } catch (WriteStateException e) {
+            if (cleanup) {
+                format.cleanupOldFiles(oldGenerationId, locations);
+            }
+            throw e;
+        } catch (IOException e) {
+            // only thrown when closing the in-memory directory
+            throw new WriteStateException(false, "failed to write state", e);
+        } finally {
+            for (Directory directory : directories) {
+                try {
+                    deleteFileIfExists(directory, tmpFileName);
+                } catch (IOException e) {
+                    // ignore, the tmp file is left behind and overwritten by the next write
+                }
+                IOUtils.closeWhileHandlingException(directory);
+            }
+        }
+
+        if (cleanup) {
+            format.cleanupOldFiles(newGenerationId, locations);
+        }
+
+        return newGenerationId;
+    }
+
+    private static <T> void writeStateToMemory(MetaDataStateFormat<T> format, T state, Directory directory, String tmpFileName)
+            throws WriteStateException {
+        try (IndexOutput out = directory.createOutput(tmpFileName, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, STATE_FILE_CODEC, STATE_FILE_VERSION);
+            out.writeInt(MetaDataStateFormat.FORMAT.index());
+            try (XContentBuilder builder = format.newXContentBuilder(MetaDataStateFormat.FORMAT, new IndexOutputOutputStream(out) {
+                @Override
+                public void close() {
+                    // this is important since some of the XContentBuilders write bytes on close.
+                    // in order to write the footer we need to prevent closing the actual index input.
+                }
+            })) {
+                builder.startObject();
+                format.toXContent(builder, state);
+                builder.endObject();
+            }
+            CodecUtil.writeFooter(out);
+        } catch (Exception e) {
+            throw new WriteStateException(false, "failed to serialize state", e);
+        }
+    }
+
+    private static void performRenames(String tmpFileName, String fileName, List<Directory> directories, Path[] locations)
+            throws WriteStateException {
+        try {
+            directories.get(0).rename(tmpFileName, fileName);
+        } catch (IOException e) {
+            throw new WriteStateException(false, "failed to rename tmp file to final name in the first state location " +
+                    locations[0].resolve(MetaDataStateFormat.STATE_DIR_NAME), e);
+        }
+
+        for (int i = 1; i < directories.size(); i++) {
+            try {
+                directories.get(i).rename(tmpFileName, fileName);
+            } catch (IOException e) {
+                throw new WriteStateException(true, "failed to rename tmp file to final name in extra state location " +
+                        locations[i].resolve(MetaDataStateFormat.STATE_DIR_NAME), e);
+            }
+        }
+    }
+
+    private interface LocationTask {
+        void run(int location) throws IOException;
+    }
+
+    private interface LocationFailure {
+        WriteStateException create(int location, Exception cause);
+    }
+
+    /**
+     * Runs the task for every location concurrently and waits for all of them, so that a failure never leaves a task running. The
+     * first failure is rethrown with the others suppressed.
+     */
+    private static void forEachLocation(List<Directory> directories, LocationTask task, LocationFailure failure)
+            throws WriteStateException {
+        final List<Future<Void>> futures = new ArrayList<>(directories.size());
+        for (int i = 0; i < directories.size(); i++) {
+            final int location = i;
+            futures.add(EXECUTOR.submit(() -> {
+                task.run(location);
+                return null;
+            }));
+        }
+        WriteStateException exception = null;
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            Exception cause = null;
+            while (true) {
+                try {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    break;
+                }
+            }
+            if (cause != null) {
+                final WriteStateException e = failure.create(i, cause);
+                if (exception == null) {
+                    exception = e;
+                } else {
+                    exception.addSuppressed(e);
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static void deleteFileIfExists(Directory directory, String fileName) throws IOException {
+        try {
+            directory.deleteFile(fileName);
+        } catch (NoSuchFileException | FileNotFoundException ignored) {
+            // the file does not exist
+        }
+    }
+
+    static long findMaxGenerationId(final String prefix, Path... locations) throws IOException {
+        final Pattern stateFilePattern = Pattern.compile(Pattern.quote(prefix) + "(\\d+)(" +
+                MetaDataStateFormat.STATE_FILE_EXTENSION + ")?");
+        long maxId = -1;
+        for (Path dataLocation : locations) {
+            final Path resolve = dataLocation.resolve(MetaDataStateFormat.STATE_DIR_NAME);
+            if (Files.exists(resolve)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(resolve, prefix + "*")) {
+                    for (Path stateFile : stream) {
+                        final Matcher matcher = stateFilePattern.matcher(stateFile.getFileName().toString());
+                        if (matcher.matches()) {
+                            final long id = Long.parseLong(matcher.group(1));
+                            maxId = Math.max(maxId, id);
+                        }
+                    }
+                }
+            }
+        }
+        return maxId;
+    }
+}
@@ -95,7 +95,10 @@ import org.elasticsearch.indices.store.IndicesStore;
 import org.elasticsearch.ingest.IngestService;
 import org.elasticsearch.monitor.MonitorService;
 import org.elasticsearch.monitor.jvm.JvmInfo;
+import org.elasticsearch.persistent.PersistentTaskParams;
+import org.elasticsearch.persistent.PersistentTaskState;
 import org.elasticsearch.persistent.PersistentTasksClusterService;
+import org.elasticsearch.persistent.PersistentTasksCustomMetaData;
 import org.elasticsearch.persistent.PersistentTasksExecutor;
 import org.elasticsearch.persistent.PersistentTasksExecutorRegistry;
 import org.elasticsearch.persistent.PersistentTasksService;
@@ -134,6 +137,7 @@ import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
@@ -191,6 +195,11 @@ public class Node implements Closeable {
 
     private static final String CLIENT_TYPE = "node";
 
+    /**
+     * -Dupdater.plugins.selective=true: only load the modules and plugins providing the customs of the global state on disk
+     */
+    static final String SELECTIVE_PLUGINS_PROPERTY = "updater.plugins.selective";
+
     private final Lifecycle lifecycle = new Lifecycle();
 
     /**
@@ -263,8 +272,11 @@ public class Node implements Closeable {
                     environment.configFile(), Arrays.toString(environment.dataFiles()), environment.logsFile(), environment.pluginsFile());
             }
 
+            final GlobalStateSummary globalStateSummary = Boolean.getBoolean(SELECTIVE_PLUGINS_PROPERTY)
+                ? GlobalStateSummary.load(nodeEnvironment.nodeDataPaths()) : null;
             this.pluginsService = new PluginsService(tmpSettings, environment.configFile(), environment.modulesFile(),
-                environment.pluginsFile(), classpathPlugins);
+                environment.pluginsFile(), classpathPlugins,
+                globalStateSummary == null ? null : requiredNamedXContent(globalStateSummary.getCustoms()));
             final Settings settings = pluginsService.updatedSettings();
             final Set<DiscoveryNodeRole> possibleRoles = Stream.concat(
                     DiscoveryNodeRole.BUILT_IN_ROLES.stream(),
@@ -307,6 +319,9 @@ public class Node implements Closeable {
                     .flatMap(List::stream)
                     .collect(Collectors.toSet());
 
+            if (globalStateSummary != null) {
+                additionalSettings.addAll(unloadedPluginSettings(settings, globalStateSummary, additionalSettings));
+            }
             final SettingsModule settingsModule =
                     new SettingsModule(settings, additionalSettings, additionalSettingsFilter, settingsUpgraders);
             scriptModule.registerClusterSettingsListeners(settingsModule.getClusterSettings());
@@ -913,6 +928,43 @@ public class Node implements Closeable {
         return pluginsService;
     }
 
+    /**
+     * The named x-content entries needed to parse the given customs: their own parsers and, for the persistent tasks, the parsers of
+     * the task params and states, whose names are not in the global state.
+     */
+    private static BiPredicate<String, String> requiredNamedXContent(Set<String> customs) {
+        final boolean persistentTasks = customs.contains(PersistentTasksCustomMetaData.TYPE);
+        return (categoryClass, name) ->
+            (MetaData.Custom.class.getName().equals(categoryClass) && customs.contains(name))
+                || (persistentTasks && (PersistentTaskParams.class.getName().equals(categoryClass)
+                    || PersistentTaskState.class.getName().equals(categoryClass)));
+    }
+
+    /**
+     * Placeholders for the node and persistent settings that no loaded module or plugin registers, when plugins were loaded
+     * selectively these may belong to a plugin that was skipped: the node settings would fail the validation and the persistent
+     * settings would be archived when the global state is loaded.
+     */
+    private static List<Setting<?>> unloadedPluginSettings(Settings settings, GlobalStateSummary globalStateSummary,
+                                                           List<Setting<?>> additionalSettings) {
+        final Set<Setting<?>> registered = new HashSet<>(ClusterSettings.BUILT_IN_CLUSTER_SETTINGS);
+        for (Setting<?> setting : additionalSettings) {
+            if (setting.hasNodeScope()) {
+                registered.add(setting);
+            }
+        }
+        final ClusterSettings probe = new ClusterSettings(Settings.EMPTY, registered);
+        final Set<String> keys = new TreeSet<>(settings.keySet());
+        keys.addAll(globalStateSummary.getPersistentSettings());
+        final List<Setting<?>> placeholders = new ArrayList<>();
+        for (String key : keys) {
+            if (key.startsWith(AbstractScopedSettings.ARCHIVED_SETTINGS_PREFIX) == false && probe.get(key) == null) {
+                placeholders.add(Setting.simpleString(key, Property.NodeScope, Property.Dynamic));
+            }
+        }
+        return placeholders;
+    }
+
     /**
      * Creates a new {@link CircuitBreakerService} based on the settings provided.
      * @see #BREAKER_TYPE_KEY
@@ -0,0 +1,259 @@
+package org.elasticsearch.plugins;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.message.ParameterizedMessage;
+import org.elasticsearch.Version;
+import org.elasticsearch.bootstrap.JarHell;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Persists the module and plugin bundles found by {@link PluginsService}, so that the next start reuses them instead of reading every
+ * plugin descriptor and running the jar hell checks again. The cache is keyed by a digest of the path, size and modification time of
+ * the modules and plugins directories, of every file directly in a bundle directory and of the core classpath entries the bundles were
+ * checked against, so any installed, removed or replaced jar invalidates it. It is only written once every bundle passed the jar hell
+ * checks, reading it back therefore means that these exact files passed them. Along with the bundles it records the named x-content
+ * entries every plugin provided and whether it is a {@link NetworkPlugin}, which lets a later start choose the bundles to load before
+ * instantiating any of them.
+ */
+final class PluginBundleCache {
+
+    private static final Logger logger = LogManager.getLogger(PluginBundleCache.class);
+
+    /**
+     * -Dupdater.plugins.cache=dir: directory of the cache files, the cache is only used, and nothing is written, if it is set
+     */
+    static final String CACHE_PROPERTY = "updater.plugins.cache";
+
+    private static final int FORMAT_VERSION = 2;
+
+    private final Path file;
+    private final String key;
+
+    private PluginBundleCache(Path file, String key) {
+        this.file = file;
+        this.key = key;
+    }
+
+    /**
+     * The bundles read from the cache, in their original order, and what each of them provided when it was loaded.
+     */
+    static final class Bundles {
+
+        final List<PluginsService.Bundle> modules = new ArrayList<>();
+        final List<PluginsService.Bundle> plugins = new ArrayList<>();
+        // plugin name -> {category class}/{name} of the named x-content entries of the plugin, see namedXContentKey
+        final Map<String, Set<String>> namedXContents = new HashMap<>();
+        final Set<String> networkPlugins = new HashSet<>();
+    }
+
+    static String namedXContentKey(Class<?> categoryClass, String name) {
+        return categoryClass.getName() + "/" + name;
+    }
+
+    /**
+     * Returns the cache of the given directories, or null if the cache is disabled or the directories could not be stamped.
+     */
+    static PluginBundleCache open(Path modulesDirectory, Path pluginsDirectory) {
+        final String location = System.getProperty(CACHE_PROPERTY);
+        if (location == null || location.isEmpty() || "false".equals(location)) {
+            return null;
+        }
+        try {
+            // one file per installation, so that several ES homes can share the cache directory
+            final String name = MessageDigests.toHexString(MessageDigests.sha256()
+                    .digest((modulesDirectory + "|" + pluginsDirectory).getBytes(StandardCharsets.UTF_8))).substring(0, 16);
+            final Path file = Paths.get(location).resolve("plugins-" + name + ".cache");
+            return new PluginBundleCache(file, key(modulesDirectory, pluginsDirectory));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("failed to stamp the module and plugin directories, the plugin bundle cache is not used", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached module and plugin bundles in their original order, or null if there is no cache for the current files.
+     */
+    Bundles read() {
+        if (Files.exists(file) == false) {
+            return null;
+        }
+        try {
+            final byte[] bytes = Files.readAllBytes(file);
+            if (bytes.length < Long.BYTES) {
+                throw new IOException("truncated file");
+            }
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - Long.BYTES);
+            if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - Long.BYTES, Long.BYTES).getLong()) {
+                throw new IOException("checksum mismatch");
+            }
+            try (StreamInput in = StreamInput.wrap(bytes, 0, bytes.length - Long.BYTES)) {
+                if (in.readInt() != FORMAT_VERSION || key.equals(in.readString()) == false) {
+                    logger.debug("plugin bundle cache [{}] is stale", file);
+                    return null;
+                }
+                final Bundles bundles = new Bundles();
+                readBundles(in, bundles, bundles.modules);
+                readBundles(in, bundles, bundles.plugins);
+                logger.debug("read [{}] modules and [{}] plugins from the plugin bundle cache [{}]",
+                        bundles.modules.size(), bundles.plugins.size(), file);
+                return bundles;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn(() -> new ParameterizedMessage("ignoring unreadable plugin bundle cache [{}]", file), e);
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the cache with the given bundles, which must have passed the jar hell checks, and what the loaded plugins provide.
+     * Failures are logged only, the next start scans the directories again.
+     */
+    void write(Collection<PluginsService.Bundle> modules, Collection<PluginsService.Bundle> plugins,
+               List<Tuple<PluginInfo, Plugin>> loaded) {
+        try {
+            final Map<String, Plugin> instances = new HashMap<>();
+            for (Tuple<PluginInfo, Plugin> plugin : loaded) {
+                instances.put(plugin.v1().getName(), plugin.v2());
+            }
+            final BytesStreamOutput out = new BytesStreamOutput();
+            out.writeInt(FORMAT_VERSION);
+            out.writeString(key);
+            writeBundles(out, modules, instances);
+            writeBundles(out, plugins, instances);
+            final byte[] bytes = BytesReference.toBytes(out.bytes());
+            final CRC32 crc = new CRC32();
+            crc.update(bytes);
+
+            Files.createDirectories(file.getParent());
+            final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (OutputStream stream = Files.newOutputStream(tmp)) {
+                    stream.write(bytes);
+                    stream.write(ByteBuffer.allocate(Long.BYTES).putLong(crc.getValue()).array());
+                }
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+            logger.debug("wrote [{}] modules and [{}] plugins to the plugin bundle cache [{}]", modules.size(), plugins.size(), file);
+        } catch (IOException | RuntimeException e) {
+            logger.warn(() -> new ParameterizedMessage("failed to write the plugin bundle cache [{}]", file), e);
+        }
+    }
+
+    private static void writeBundles(StreamOutput out, Collection<PluginsService.Bundle> bundles, Map<String, Plugin> instances)
+            throws IOException {
+        out.writeVInt(bundles.size());
+        for (PluginsService.Bundle bundle : bundles) {
+            out.writeString(bundle.dir.toString());
+            bundle.plugin.writeTo(out);
+            final Plugin plugin = instances.get(bundle.plugin.getName());
+            final List<String> namedXContents = new ArrayList<>();
+            if (plugin != null) {
+                for (NamedXContentRegistry.Entry entry : plugin.getNamedXContent()) {
+                    namedXContents.add(namedXContentKey(entry.categoryClass, entry.name.getPreferredName()));
+                }
+            }
+            out.writeStringCollection(namedXContents);
+            out.writeBoolean(plugin instanceof NetworkPlugin);
+        }
+    }
+
+    private static void readBundles(StreamInput in, Bundles bundles, List<PluginsService.Bundle> target) throws IOException {
+        final int size = in.readVInt();
+        for (int i = 0; i < size; i++) {
+            final Path dir = PathUtils.get(in.readString());
+            // the jars are listed again rather than cached, the key guarantees that they are the ones that were checked
+            final PluginsService.Bundle bundle = new PluginsService.Bundle(new PluginInfo(in), dir);
+            target.add(bundle);
+            bundles.namedXContents.put(bundle.plugin.getName(), new HashSet<>(in.readStringList()));
+            if (in.readBoolean()) {
+                bundles.networkPlugins.add(bundle.plugin.getName());
+            }
+        }
+    }
+
+    private static String key(Path modulesDirectory, Path pluginsDirectory) throws IOException {
+        final MessageDigest digest = MessageDigests.sha256();
+        update(digest, "version " + Version.CURRENT + " " + FORMAT_VERSION);
+        for (URL url : JarHell.parseClassPath()) {
+            try {
+                stamp(digest, PathUtils.get(url.toURI()));
+            } catch (URISyntaxException e) {
+                update(digest, url.toString());
+            }
+        }
+        stampBundles(digest, "modules", modulesDirectory);
+        stampBundles(digest, "plugins", pluginsDirectory);
+        return MessageDigests.toHexString(digest.digest());
+    }
+
+    private static void stampBundles(MessageDigest digest, String type, Path directory) throws IOException {
+        update(digest, type);
+        if (directory == null || Files.isDirectory(directory) == false) {
+            return;
+        }
+        stamp(digest, directory);
+        for (Path bundleDir : sorted(PluginsService.findPluginDirs(directory).stream())) {
+            stamp(digest, bundleDir);
+            if (Files.isDirectory(bundleDir)) {
+                try (Stream<Path> files = Files.list(bundleDir)) {
+                    for (Path file : sorted(files)) {
+                        stamp(digest, file);
+                    }
+                }
+            }
+        }
+    }
+
+    private static List<Path> sorted(Stream<Path> paths) {
+        return paths.sorted().collect(Collectors.toList());
+    }
+
+    private static void stamp(MessageDigest digest, Path path) throws IOException {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            update(digest, path + " " + attributes.size() + " " + attributes.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            update(digest, path + " missing");
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '\n');
+    }
+}
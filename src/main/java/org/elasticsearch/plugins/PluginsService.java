@@ -39,6 +39,7 @@ import org.elasticsearch.common.io.FileSystemUtils;
 import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Setting.Property;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.threadpool.ExecutorBuilder;
 import org.elasticsearch.transport.TransportSettings;
@@ -51,6 +52,12 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -69,6 +76,11 @@ public class PluginsService {
     private final List<Tuple<PluginInfo, Plugin>> plugins;
     private final PluginsAndModules info;
 
+    /**
+     * -Dupdater.plugins.parallelism=N: threads creating the plugin classloaders and instances, 1 (the default) loads them one after another
+     */
+    static final String LOAD_PARALLELISM_PROPERTY = "updater.plugins.parallelism";
+
     public static final Setting<List<String>> MANDATORY_SETTING =
         Setting.listSetting("plugin.mandatory", Collections.emptyList(), Function.identity(), Property.NodeScope);
 
@@ -93,6 +105,23 @@ public class PluginsService {
         Path modulesDirectory,
         Path pluginsDirectory,
         Collection<Class<? extends Plugin>> classpathPlugins
+    ) {
+        this(settings, configPath, modulesDirectory, pluginsDirectory, classpathPlugins, null);
+    }
+
+    /**
+     * Constructs a new PluginService which only loads the modules and plugins providing a named x-content entry accepted by
+     * {@code requiredNamedXContent}, called with the category class name and the name of the entry, along with the network plugins
+     * and the plugins these extend. Which bundle provides what is only known from the plugin bundle cache, without it every bundle is
+     * loaded. A null {@code requiredNamedXContent} loads every bundle.
+     */
+    public PluginsService(
+        Settings settings,
+        Path configPath,
+        Path modulesDirectory,
+        Path pluginsDirectory,
+        Collection<Class<? extends Plugin>> classpathPlugins,
+        BiPredicate<String, String> requiredNamedXContent
     ) {
         this.settings = settings;
         this.configPath = configPath;
@@ -114,12 +143,19 @@ public class PluginsService {
             pluginsNames.add(pluginInfo.getName());
         }
 
+        // when nothing changed on disk since the last start, the cached bundles replace reading the descriptors and the jar hell checks
+        final PluginBundleCache bundleCache = PluginBundleCache.open(modulesDirectory, pluginsDirectory);
+        final PluginBundleCache.Bundles cachedBundles = bundleCache == null ? null : bundleCache.read();
+        final List<Bundle> moduleBundles = new ArrayList<>();
+        final List<Bundle> pluginBundles = new ArrayList<>();
+
         Set<Bundle> seenBundles = new LinkedHashSet<>();
         List<PluginInfo> modulesList = new ArrayList<>();
         // load modules
         if (modulesDirectory != null) {
             try {
-                Set<Bundle> modules = getModuleBundles(modulesDirectory);
+                Collection<Bundle> modules = cachedBundles != null ? cachedBundles.modules : getModuleBundles(modulesDirectory);
+                moduleBundles.addAll(modules);
                 for (Bundle bundle : modules) {
                     modulesList.add(bundle.plugin);
                 }
@@ -135,7 +171,8 @@ public class PluginsService {
                 // TODO: remove this leniency, but tests bogusly rely on it
                 if (isAccessibleDirectory(pluginsDirectory, logger)) {
                     checkForFailedPluginRemovals(pluginsDirectory);
-                    Set<Bundle> plugins = getPluginBundles(pluginsDirectory);
+                    Collection<Bundle> plugins = cachedBundles != null ? cachedBundles.plugins : getPluginBundles(pluginsDirectory);
+                    pluginBundles.addAll(plugins);
                     for (final Bundle bundle : plugins) {
                         pluginsList.add(bundle.plugin);
                         pluginsNames.add(bundle.plugin.getName());
@@ -147,8 +184,32 @@ public class PluginsService {
             }
         }
 
-        List<Tuple<PluginInfo, Plugin>> loaded = loadBundles(seenBundles);
+        if (requiredNamedXContent != null) {
+            if (bundleCache == null) {
+                logger.info("selective loading needs the plugin bundle cache, [-D{}] is not set, loading all modules and plugins",
+                        PluginBundleCache.CACHE_PROPERTY);
+            } else if (cachedBundles == null) {
+                logger.info("the plugin bundle cache does not know what the modules and plugins provide yet, loading all of them");
+            } else {
+                Set<Bundle> selectedBundles = selectBundles(seenBundles, cachedBundles, requiredNamedXContent);
+                Set<String> skipped = new TreeSet<>();
+                for (Bundle bundle : seenBundles) {
+                    if (selectedBundles.contains(bundle) == false) {
+                        skipped.add(bundle.plugin.getName());
+                    }
+                }
+                logger.info("loading [{}] of [{}] modules and plugins, skipping {}", selectedBundles.size(), seenBundles.size(), skipped);
+                modulesList.removeIf(info -> skipped.contains(info.getName()));
+                pluginsList.removeIf(info -> skipped.contains(info.getName()));
+                seenBundles = selectedBundles;
+            }
+        }
+
+        List<Tuple<PluginInfo, Plugin>> loaded = loadBundles(seenBundles, cachedBundles != null);
         pluginsLoaded.addAll(loaded);
+        if (bundleCache != null && cachedBundles == null) {
+            bundleCache.write(moduleBundles, pluginBundles, loaded);
+        }
 
         this.info = new PluginsAndModules(pluginsList, modulesList);
         this.plugins = Collections.unmodifiableList(pluginsLoaded);
@@ -265,10 +326,12 @@ public class PluginsService {
     // a "bundle" is a group of jars in a single classloader
     static class Bundle {
         final PluginInfo plugin;
+        final Path dir;
         final Set<URL> urls;
 
         Bundle(PluginInfo plugin, Path dir) throws IOException {
             this.plugin = Objects.requireNonNull(plugin);
+            this.dir = dir;
             Set<URL> urls = new LinkedHashSet<>();
             // gather urls for jar files
             try (DirectoryStream<Path> jarStream = Files.newDirectoryStream(dir, "*.jar")) {
@@ -394,6 +457,46 @@ public class PluginsService {
         return bundle;
     }
 
+    /**
+     * Returns the bundles providing a named x-content entry accepted by {@code requiredNamedXContent} or a network plugin, and the
+     * bundles they extend, in the order of {@code bundles}. An extended plugin that does not exist is left to {@link #sortBundles}.
+     */
+    static Set<Bundle> selectBundles(Set<Bundle> bundles, PluginBundleCache.Bundles cachedBundles,
+                                     BiPredicate<String, String> requiredNamedXContent) {
+        Map<String, Bundle> namedBundles = new HashMap<>();
+        for (Bundle bundle : bundles) {
+            namedBundles.put(bundle.plugin.getName(), bundle);
+        }
+        Set<String> selected = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        for (Bundle bundle : bundles) {
+            String name = bundle.plugin.getName();
+            boolean required = cachedBundles.networkPlugins.contains(name);
+            for (String key : cachedBundles.namedXContents.getOrDefault(name, Collections.emptySet())) {
+                // {category class}/{name}, the name may contain slashes but the class name can not
+                int separator = key.indexOf('/');
+                required |= requiredNamedXContent.test(key.substring(0, separator), key.substring(separator + 1));
+            }
+            if (required) {
+                pending.add(name);
+            }
+        }
+        while (pending.isEmpty() == false) {
+            String name = pending.poll();
+            Bundle bundle = namedBundles.get(name);
+            if (selected.add(name) && bundle != null) {
+                pending.addAll(bundle.plugin.getExtendedPlugins());
+            }
+        }
+        Set<Bundle> selectedBundles = new LinkedHashSet<>();
+        for (Bundle bundle : bundles) {
+            if (selected.contains(bundle.plugin.getName())) {
+                selectedBundles.add(bundle);
+            }
+        }
+        return selectedBundles;
+    }
+
     /**
      * Return the given bundles, sorted in dependency loading order.
      *
@@ -446,14 +549,24 @@ public class PluginsService {
         sortedBundles.add(bundle);
     }
 
-    private List<Tuple<PluginInfo,Plugin>> loadBundles(Set<Bundle> bundles) {
+    /**
+     * @param jarHellChecked whether the bundles come from the {@link PluginBundleCache}, which only holds bundles that passed the checks
+     */
+    private List<Tuple<PluginInfo,Plugin>> loadBundles(Set<Bundle> bundles, boolean jarHellChecked) {
+        List<Bundle> sortedBundles = sortBundles(bundles);
+        int parallelism = Integer.getInteger(LOAD_PARALLELISM_PROPERTY, 1);
+        if (parallelism > 1 && sortedBundles.size() > 1) {
+            return loadBundlesInParallel(sortedBundles, jarHellChecked, parallelism);
+        }
+
         List<Tuple<PluginInfo, Plugin>> plugins = new ArrayList<>();
         Map<String, Plugin> loaded = new HashMap<>();
         Map<String, Set<URL>> transitiveUrls = new HashMap<>();
-        List<Bundle> sortedBundles = sortBundles(bundles);
 
         for (Bundle bundle : sortedBundles) {
-            checkBundleJarHell(JarHell.parseClassPath(), bundle, transitiveUrls);
+            if (jarHellChecked == false) {
+                checkBundleJarHell(JarHell.parseClassPath(), bundle, transitiveUrls);
+            }
 
             final Plugin plugin = loadBundle(bundle, loaded);
             plugins.add(new Tuple<>(bundle.plugin, plugin));
@@ -462,6 +575,76 @@ public class PluginsService {
         return Collections.unmodifiableList(plugins);
     }
 
+    /**
+     * Loads the bundles on a fork-join pool, every bundle as soon as the plugins it extends are loaded, so that the bundles that do not
+     * depend on each other (most modules) are checked and get their classloader at the same time. Like {@link #loadBundle}, the Lucene
+     * and extensible plugin SPIs are reloaded with the classloader of a bundle before the bundle is instantiated, so its constructor
+     * sees its own services and the reloaded SPI of the plugins it extends. The reloads run one bundle after another in the sorted
+     * order, so the services registered first still win, while the instantiations run in parallel. If bundles fail, the exception of
+     * the first one in the sorted order is thrown, which is the one the sequential loading throws.
+     */
+    private List<Tuple<PluginInfo,Plugin>> loadBundlesInParallel(List<Bundle> sortedBundles, boolean jarHellChecked, int parallelism) {
+        final long startNS = System.nanoTime();
+        final Set<URL> classpath = jarHellChecked ? Collections.emptySet() : JarHell.parseClassPath();
+        final Map<String, Set<URL>> transitiveUrls = new ConcurrentHashMap<>();
+        final Map<String, Plugin> loaded = new ConcurrentHashMap<>();
+        final Map<String, CompletableFuture<Plugin>> plugins = new HashMap<>();
+
+        // plugin constructors may use the context classloader, as they would on the thread creating the node
+        final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        final ForkJoinPool pool = new ForkJoinPool(parallelism, p -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("plugins_loader[" + thread.getPoolIndex() + "]");
+            thread.setContextClassLoader(contextClassLoader);
+            return thread;
+        }, null, false);
+        try {
+            // completes once the SPIs of the previous bundle in the sorted order are reloaded
+            CompletableFuture<?> previousReload = CompletableFuture.completedFuture(null);
+            for (Bundle bundle : sortedBundles) {
+                // sorted, so the futures of the extended plugins already exist
+                final CompletableFuture<?>[] extended = bundle.plugin.getExtendedPlugins().stream()
+                    .map(plugins::get).toArray(CompletableFuture[]::new);
+                final CompletableFuture<ClassLoader> loader = CompletableFuture.allOf(extended).thenApplyAsync(ignored -> {
+                    if (jarHellChecked == false) {
+                        checkBundleJarHell(classpath, bundle, transitiveUrls);
+                    }
+                    return createBundleLoader(bundle, loaded);
+                }, pool);
+                final CompletableFuture<ClassLoader> reloaded = loader.thenCombine(previousReload, (bundleLoader, ignored) -> {
+                    reloadSPI(bundle, bundleLoader, loaded);
+                    return bundleLoader;
+                });
+                previousReload = reloaded;
+                plugins.put(bundle.plugin.getName(), reloaded.thenApplyAsync(bundleLoader -> {
+                    final Plugin plugin = instantiateBundle(bundle, bundleLoader);
+                    loaded.put(bundle.plugin.getName(), plugin);
+                    return plugin;
+                }, pool));
+            }
+
+            final List<Tuple<PluginInfo, Plugin>> result = new ArrayList<>();
+            for (Bundle bundle : sortedBundles) {
+                try {
+                    result.add(new Tuple<>(bundle.plugin, plugins.get(bundle.plugin.getName()).join()));
+                } catch (CompletionException e) {
+                    // a failed extended or previous plugin comes first in the sorted order, so this is the failure of the bundle itself
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    } else if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            logger.debug("loaded [{}] bundles with parallelism [{}] in [{}]",
+                sortedBundles.size(), parallelism, TimeValue.timeValueNanos(System.nanoTime() - startNS));
+            return Collections.unmodifiableList(result);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     // jar-hell check the bundle against the parent classloader and extended plugins
     // the plugin cli does it, but we do it again, in case lusers mess with jar files manually
     static void checkBundleJarHell(Set<URL> classpath, Bundle bundle, Map<String, Set<URL>> transitiveUrls) {
@@ -513,6 +696,15 @@ public class PluginsService {
     }
 
     private Plugin loadBundle(Bundle bundle, Map<String, Plugin> loaded) {
+        ClassLoader loader = createBundleLoader(bundle, loaded);
+        reloadSPI(bundle, loader, loaded);
+        Plugin plugin = instantiateBundle(bundle, loader);
+        loaded.put(bundle.plugin.getName(), plugin);
+        return plugin;
+    }
+
+    // creates the classloader of the bundle, the plugins it extends must have been loaded
+    private ClassLoader createBundleLoader(Bundle bundle, Map<String, Plugin> loaded) {
         String name = bundle.plugin.getName();
 
 //        verifyCompatibility(bundle.plugin);
@@ -530,19 +722,21 @@ public class PluginsService {
 
         // create a child to load the plugin in this bundle
         ClassLoader parentLoader = PluginLoaderIndirection.createLoader(getClass().getClassLoader(), extendedLoaders);
-        ClassLoader loader = URLClassLoader.newInstance(bundle.urls.toArray(new URL[0]), parentLoader);
+        return URLClassLoader.newInstance(bundle.urls.toArray(new URL[0]), parentLoader);
+    }
 
-        // reload SPI with any new services from the plugin
+    // reload SPI with any new services from the plugin
+    private static void reloadSPI(Bundle bundle, ClassLoader loader, Map<String, Plugin> loaded) {
         reloadLuceneSPI(loader);
         for (String extendedPluginName : bundle.plugin.getExtendedPlugins()) {
             // note: already asserted above that extended plugins are loaded and extensible
             ExtensiblePlugin.class.cast(loaded.get(extendedPluginName)).reloadSPI(loader);
         }
+    }
 
+    private Plugin instantiateBundle(Bundle bundle, ClassLoader loader) {
         Class<? extends Plugin> pluginClass = loadPluginClass(bundle.plugin.getClassname(), loader);
-        Plugin plugin = loadPlugin(pluginClass, settings, configPath);
-        loaded.put(name, plugin);
-        return plugin;
+        return loadPlugin(pluginClass, settings, configPath);
     }
 
     /**
@@ -0,0 +1,126 @@
+package updater;
+
+import org.elasticsearch.cli.Terminal;
+import org.jline.reader.ParsedLine;
+import org.jline.reader.Parser;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.annotation.Order;
+import org.springframework.shell.ExitRequest;
+import org.springframework.shell.Input;
+import org.springframework.shell.Shell;
+import org.springframework.shell.ShellRunner;
+import org.springframework.shell.jline.ScriptShellRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Runs the commands of a file, or of stdin for {@code -}, given by {@code -Dupdater.batch} against the node loaded once by
+ * {@link UpdaterService}, one command per line, blank lines and lines starting with {@code #} are skipped. The JVM exits with 0 when
+ * all commands succeeded and with 1 at the first command that failed. Ordered before {@link DaemonShellRunner}, so that it refuses to
+ * start when {@code -Dupdater.daemon} is given as well instead of one of them being picked silently.
+ */
+@Component
+@Order(ScriptShellRunner.PRECEDENCE - 60)
+public class BatchShellRunner implements ShellRunner {
+
+    /**
+     * -Dupdater.batch=file|-: run the commands of the file (or stdin) and exit instead of starting the interactive shell
+     */
+    static final String BATCH_PROPERTY = "updater.batch";
+
+    private final Shell shell;
+    private final Parser parser;
+    private final UpdaterService updaterService;
+    private final ConfigurableApplicationContext context;
+
+    public BatchShellRunner(Shell shell, Parser parser, UpdaterService updaterService, ConfigurableApplicationContext context) {
+        this.shell = shell;
+        this.parser = parser;
+        this.updaterService = updaterService;
+        this.context = context;
+    }
+
+    @Override
+    public boolean canRun(ApplicationArguments args) {
+        return System.getProperty(BATCH_PROPERTY) != null;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        if (System.getProperty(DaemonShellRunner.DAEMON_PROPERTY) != null) {
+            throw new IllegalArgumentException("-D" + BATCH_PROPERTY + " and -D" + DaemonShellRunner.DAEMON_PROPERTY
+                    + " cannot be used together");
+        }
+        int exitCode = runBatch(System.getProperty(BATCH_PROPERTY));
+        System.exit(SpringApplication.exit(context, () -> exitCode));
+    }
+
+    private int runBatch(String source) throws IOException {
+        try (BufferedReader reader = "-".equals(source)
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                Terminal.DEFAULT.println("> " + line);
+                String failure;
+                try {
+                    failure = execute(line);
+                } catch (ExitRequest e) {
+                    return e.status();
+                }
+                if (failure != null) {
+                    Terminal.DEFAULT.errorPrintln(String.format("batch failed at line [%s] [%s]: %s", lineNumber, line, failure));
+                    return 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Runs one command, returns why it failed or null if it succeeded.
+     */
+    private String execute(String line) {
+        ParsedLine parsedLine = parser.parse(line, line.length() + 1);
+        Object result = shell.evaluate(new Input() {
+            @Override
+            public String rawText() {
+                return parsedLine.line();
+            }
+
+            @Override
+            public List<String> words() {
+                // same as the interactive shell: drop the line breaks of continuations and quoted strings
+                return parsedLine.words().stream()
+                        .map(s -> s.replaceAll("^\\n+|\\n+$", "").replaceAll("\\n+", " "))
+                        .collect(Collectors.toList());
+            }
+        });
+        if (result instanceof ExitRequest) {
+            throw (ExitRequest) result;
+        }
+        if (result instanceof Throwable) {
+            return result.toString();
+        }
+        if (result != null && result != Shell.NO_INPUT) {
+            Terminal.DEFAULT.println(result.toString());
+        }
+        return updaterService.takeFailure();
+    }
+}
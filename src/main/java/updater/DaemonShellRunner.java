@@ -0,0 +1,297 @@
+package updater;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.annotation.Order;
+import org.springframework.shell.ShellRunner;
+import org.springframework.shell.jline.ScriptShellRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static updater.MetaDataPrinter.metaDataString;
+
+/**
+ * Keeps the metadata loaded by {@link UpdaterService} resident and serves the print and update commands over HTTP on the loopback
+ * interface, so that repeated inspections of a node do not pay the bootstrap again. The options are the ones of the shell commands,
+ * passed as query parameters:
+ * <pre>
+ * GET  /node
+ * GET  /manifest?n=10&amp;i=logs-*
+ * GET  /global?n=10&amp;l=512&amp;t=template&amp;r=false&amp;d=-1&amp;m=false
+ * GET  /index?i=logs-*&amp;r=false&amp;l=-1&amp;d=-1&amp;m=false
+ * GET  /verify?p=0
+ * GET  /scan?a=false&amp;p=0
+ * POST /update/version?v=7050199&amp;s=all
+ * POST /reload?s=all&amp;p=0&amp;f=false
+ * POST /shutdown
+ * </pre>
+ * Prints run concurrently under the read lock and stream straight into the response, updates and reloads hold the write lock and
+ * answer with the messages of the command. Every request must carry {@code Authorization: Bearer <token>}, the token is random and
+ * written at startup to a file only the user running the daemon can read, and a {@code Host} of {@code 127.0.0.1} or
+ * {@code localhost}, so that neither other local users nor browser pages (cross-site requests, DNS rebinding) can reach the commands.
+ * Cannot be combined with {@code -Dupdater.batch}, see {@link BatchShellRunner}.
+ */
+@Component
+@Order(ScriptShellRunner.PRECEDENCE - 50)
+public class DaemonShellRunner implements ShellRunner {
+
+    private static final Logger logger = LogManager.getLogger(DaemonShellRunner.class);
+
+    /**
+     * -Dupdater.daemon=port: serve the commands on 127.0.0.1:port instead of starting the interactive shell
+     */
+    static final String DAEMON_PROPERTY = "updater.daemon";
+
+    /**
+     * -Dupdater.daemon.token=file: where the token is written, {java.io.tmpdir}/updater-daemon-{port}.token by default
+     */
+    static final String TOKEN_PROPERTY = "updater.daemon.token";
+
+    private static final String BEARER = "Bearer ";
+
+    private final UpdaterService updaterService;
+    private final ConfigurableApplicationContext context;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CountDownLatch shutdown = new CountDownLatch(1);
+
+    public DaemonShellRunner(UpdaterService updaterService, ConfigurableApplicationContext context) {
+        this.updaterService = updaterService;
+        this.context = context;
+    }
+
+    @Override
+    public boolean canRun(ApplicationArguments args) {
+        return System.getProperty(DAEMON_PROPERTY) != null;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws Exception {
+        int port = Integer.parseInt(System.getProperty(DAEMON_PROPERTY));
+        Path tokenFile = Paths.get(System.getProperty(TOKEN_PROPERTY,
+                Paths.get(System.getProperty("java.io.tmpdir"), "updater-daemon-" + port + ".token").toString()));
+        byte[] token = writeToken(tokenFile);
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                EsExecutors.daemonThreadFactory("updater_daemon"));
+        server.setExecutor(executor);
+
+        context(server, token, "/node", exchange -> read(exchange, "GET",
+                params -> out -> out.append(metaDataString(updaterService.getNodeMetaData()))));
+        context(server, token, "/manifest", exchange -> read(exchange, "GET",
+                params -> updaterService.manifestPrinter(intParam(params, "n", 10), params.getOrDefault("i", ""))));
+        context(server, token, "/global", exchange -> read(exchange, "GET",
+                params -> updaterService.globalPrinter(intParam(params, "n", 10), intParam(params, "l", 512),
+                        params.getOrDefault("t", ""), Boolean.parseBoolean(params.getOrDefault("r", "false")),
+                        intParam(params, "d", -1), Boolean.parseBoolean(params.getOrDefault("m", "false")))));
+        context(server, token, "/index", exchange -> read(exchange, "GET",
+                params -> updaterService.indexPrinter(params.getOrDefault("i", ""),
+                        Boolean.parseBoolean(params.getOrDefault("r", "false")), intParam(params, "l", -1),
+                        intParam(params, "d", -1), Boolean.parseBoolean(params.getOrDefault("m", "false")))));
+        context(server, token, "/verify", exchange -> read(exchange, "GET",
+                params -> updaterService.verifyState(intParam(params, "p", 0))::print));
+        context(server, token, "/scan", exchange -> read(exchange, "GET",
+                params -> updaterService.scanState(Boolean.parseBoolean(params.getOrDefault("a", "false")),
+                        intParam(params, "p", 0))::print));
+        context(server, token, "/update/version", exchange -> write(exchange,
+                params -> updaterService.updateVersion(params.getOrDefault("v", ""), params.getOrDefault("s", "all"))));
+        context(server, token, "/reload", exchange -> write(exchange,
+                params -> updaterService.reloadMetaDate(params.getOrDefault("s", "all"), intParam(params, "p", 0),
+                        Boolean.parseBoolean(params.getOrDefault("f", "false")))));
+        context(server, token, "/shutdown", exchange -> {
+            if ("POST".equals(exchange.getRequestMethod()) == false) {
+                respond(exchange, 405, "POST only");
+                return;
+            }
+            respond(exchange, 200, "shutting down");
+            shutdown.countDown();
+        });
+
+        server.start();
+        logger.info("serving metadata on http://{}, token in [{}]", server.getAddress(), tokenFile);
+        shutdown.await();
+        // let running requests finish
+        server.stop(1);
+        executor.shutdown();
+        Files.deleteIfExists(tokenFile);
+        System.exit(SpringApplication.exit(context, () -> 0));
+    }
+
+    /**
+     * Writes a new random token to the file, readable and writable by the owner only. An existing file is replaced, the file is
+     * created anew so that its permissions are the ones given here.
+     */
+    private static byte[] writeToken(Path tokenFile) throws IOException {
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        Files.deleteIfExists(tokenFile);
+        Files.createFile(tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(tokenFile, token.getBytes(StandardCharsets.UTF_8));
+        return token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Serves the path with the handler once the request is checked to come from a local client knowing the token.
+     */
+    private static void context(HttpServer server, byte[] token, String path, HttpHandler handler) {
+        server.createContext(path, exchange -> {
+            if (isLocalHost(exchange.getRequestHeaders().getFirst("Host")) == false) {
+                respond(exchange, 403, "Host must be 127.0.0.1 or localhost");
+                return;
+            }
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+            if (authorization == null || authorization.startsWith(BEARER) == false
+                    || MessageDigest.isEqual(token, authorization.substring(BEARER.length()).getBytes(StandardCharsets.UTF_8)) == false) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                respond(exchange, 401, "Authorization: Bearer <token> required, the token file is logged at startup");
+                return;
+            }
+            handler.handle(exchange);
+        });
+    }
+
+    private static boolean isLocalHost(String host) {
+        if (host == null) {
+            return false;
+        }
+        int idx = host.lastIndexOf(':');
+        String name = idx < 0 ? host : host.substring(0, idx);
+        return name.equals("127.0.0.1") || name.equalsIgnoreCase("localhost");
+    }
+
+    private interface PrinterFactory {
+        CheckedConsumer<MetaDataWriter, IOException> printer(Map<String, String> params) throws Exception;
+    }
+
+    private interface Command {
+        void run(Map<String, String> params);
+    }
+
+    private void read(HttpExchange exchange, String method, PrinterFactory factory) throws IOException {
+        if (method.equals(exchange.getRequestMethod()) == false) {
+            respond(exchange, 405, method + " only");
+            return;
+        }
+        final Lock readLock = lock.readLock();
+        readLock.lock();
+        try {
+            final CheckedConsumer<MetaDataWriter, IOException> printer;
+            try {
+                printer = factory.printer(params(exchange));
+            } catch (IllegalArgumentException e) {
+                respond(exchange, 400, e.getMessage());
+                return;
+            } catch (Exception e) {
+                logger.error("request [" + exchange.getRequestURI() + "] failed", e);
+                respond(exchange, 500, e.toString());
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+            exchange.sendResponseHeaders(200, 0);
+            try (MetaDataWriter out = new MetaDataWriter(exchange.getResponseBody(), true)) {
+                printer.accept(out);
+                out.append("\n");
+            }
+        } finally {
+            readLock.unlock();
+            exchange.close();
+        }
+    }
+
+    private void write(HttpExchange exchange, Command command) throws IOException {
+        if ("POST".equals(exchange.getRequestMethod()) == false) {
+            respond(exchange, 405, "POST only");
+            return;
+        }
+        final Lock writeLock = lock.writeLock();
+        writeLock.lock();
+        try {
+            final Map<String, String> params = params(exchange);
+            updaterService.takeFailure();
+            // the messages the command prints are the answer, they do not go to the console of the daemon
+            final StringWriter output = new StringWriter();
+            updaterService.printingTo(new PrintWriter(output), () -> command.run(params));
+            String failure = updaterService.takeFailure();
+            if (failure == null) {
+                respond(exchange, 200, output.toString().trim());
+            } else {
+                respond(exchange, 500, output.toString() + failure);
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+        } catch (Exception e) {
+            logger.error("request [" + exchange.getRequestURI() + "] failed", e);
+            respond(exchange, 500, e.toString());
+        } finally {
+            writeLock.unlock();
+            exchange.close();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> params(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int idx = pair.indexOf('=');
+            String key = idx < 0 ? pair : pair.substring(0, idx);
+            String value = idx < 0 ? "" : pair.substring(idx + 1);
+            params.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    private static int intParam(Map<String, String> params, String key, int defaultValue) {
+        String value = params.get(key);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("parameter [" + key + "] must be an integer but was [" + value + "]");
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package updater;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.env.NodeMetaData;
+import org.elasticsearch.gateway.GatewayMetaState;
+import org.elasticsearch.gateway.ParallelStateWriter;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.elasticsearch.node.InternalSettingsPreparer.prepareEnvironment;
+
+/**
+ * Updates the version of many nodes in one JVM: every target is an ES home (a directory with {@code config/elasticsearch.yml}, whose
+ * data paths are used) or a {@code path.data} root, which is loaded with its own {@link NodeEnvironment} and a lazy
+ * {@link GatewayMetaState} sharing the registry, and so the plugins, of the running updater. At most {@code parallelism} nodes are
+ * processed at the same time. The node lock is not taken by this tool, so a target whose data path is used by another target or by
+ * the node loaded by the updater fails before anything is written; the nodes themselves must be stopped.
+ */
+public class FleetUpdater {
+
+    private final Map<String, String> baseSettings;
+    private final Path[] loadedDataPaths;
+    private final NamedXContentRegistry xContentRegistry;
+    private final int parallelism;
+
+    /**
+     * @param baseSettings    the settings the updater itself was started with, used with the {@code path.data} of data root targets
+     * @param loadedDataPaths the data paths of the node loaded by the updater, which can not be a target
+     */
+    public FleetUpdater(Map<String, String> baseSettings, Path[] loadedDataPaths, NamedXContentRegistry xContentRegistry,
+                        int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("fleet parallelism must be at least 1 but was [" + parallelism + "]");
+        }
+        this.baseSettings = baseSettings;
+        this.loadedDataPaths = loadedDataPaths;
+        this.xContentRegistry = xContentRegistry;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Updates every target and returns one report per target, in the order of the targets. With {@code dryRun} nothing is written,
+     * the reports tell what would have been.
+     */
+    public List<NodeReport> updateVersion(List<String> targets, Version version, String scope, boolean dryRun)
+            throws InterruptedException {
+        final List<NodeReport> reports = new ArrayList<>(targets.size());
+        final Map<Path, String> dataPathOwners = new HashMap<>();
+        for (Path dataPath : loadedDataPaths) {
+            dataPathOwners.put(dataPath.toAbsolutePath().normalize(), "the node loaded by the updater");
+        }
+        final List<Callable<NodeReport>> tasks = new ArrayList<>(targets.size());
+        for (String target : targets) {
+            final NodeReport report = new NodeReport(target);
+            reports.add(report);
+            final Environment environment;
+            try {
+                environment = environment(target);
+                for (Path dataPath : environment.dataFiles()) {
+                    final String owner = dataPathOwners.putIfAbsent(dataPath.toAbsolutePath().normalize(), target);
+                    if (owner != null) {
+                        throw new IllegalArgumentException("data path [" + dataPath + "] is already used by " + owner);
+                    }
+                }
+            } catch (Exception e) {
+                report.fail(e, 0L);
+                continue;
+            }
+            tasks.add(() -> updateVersion(report, environment, version, scope, dryRun));
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, tasks.size())),
+                EsExecutors.daemonThreadFactory("updater_fleet"));
+        try {
+            for (Future<NodeReport> future : executor.invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // updateVersion(report, ...) records its own failures
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return reports;
+    }
+
+    private NodeReport updateVersion(NodeReport report, Environment environment, Version version, String scope, boolean dryRun) {
+        final long startNS = System.nanoTime();
+        try {
+            for (Path dataFile : environment.dataFiles()) {
+                // NodeEnvironment creates missing directories, do not leave empty nodes behind for a mistyped target
+                if (Files.isDirectory(dataFile.resolve(NodeEnvironment.NODES_FOLDER)) == false) {
+                    throw new IllegalArgumentException("no node data found in [" + dataFile + "]");
+                }
+            }
+            try (NodeEnvironment nodeEnvironment = new NodeEnvironment(environment.settings(), environment)) {
+                final NodeMetaData nodeMetaData = nodeEnvironment.getNodeMetaData();
+                report.nodeId = nodeMetaData.nodeId();
+                report.nodeVersion = nodeMetaData.nodeVersion();
+                if (scope.equalsIgnoreCase("node") || scope.equalsIgnoreCase("all")) {
+                    if (nodeMetaData.nodeVersion().id != version.id) {
+                        report.nodeChanged = true;
+                        if (dryRun == false) {
+                            nodeMetaData.setNodeVersion(version);
+                            ParallelStateWriter.writeAndCleanup(NodeMetaData.FORMAT, nodeMetaData, nodeEnvironment.nodeDataPaths());
+                        }
+                    }
+                }
+                if (scope.equalsIgnoreCase("global") || scope.equalsIgnoreCase("all")) {
+                    // lazy, so that only the changed indices of the nodes being processed are in memory at the same time
+                    final GatewayMetaState gatewayMetaState = new GatewayMetaState();
+                    gatewayMetaState.setLazy(true);
+                    gatewayMetaState.start(environment.settings(), nodeEnvironment, xContentRegistry);
+                    final Iterable<IndexMetaData> indices = gatewayMetaState.isLazy()
+                            ? gatewayMetaState.getLazyMetaData() : gatewayMetaState.getMetaData();
+                    final List<IndexMetaData> changed = new ArrayList<>();
+                    for (IndexMetaData indexMetaData : indices) {
+                        report.indices++;
+                        if (UpdaterService.updateCreatedVersion(indexMetaData, version)) {
+                            changed.add(indexMetaData);
+                        }
+                    }
+                    report.changedIndices = changed.size();
+                    if (dryRun == false) {
+                        gatewayMetaState.writeIndices("fleet update version", changed);
+                    }
+                }
+            }
+            report.took = TimeValue.timeValueNanos(System.nanoTime() - startNS);
+        } catch (Exception e) {
+            report.fail(e, System.nanoTime() - startNS);
+        }
+        return report;
+    }
+
+    private Environment environment(String target) {
+        final Path path = Paths.get(target).toAbsolutePath().normalize();
+        final Map<String, String> settings;
+        if (Files.exists(path.resolve("config").resolve("elasticsearch.yml"))) {
+            // an ES home brings its own settings, do not apply the ones of the updater to it
+            settings = new HashMap<>();
+            settings.put(Environment.PATH_HOME_SETTING.getKey(), path.toString());
+            settings.put("xpack.ml.enabled", "false");
+        } else {
+            settings = new HashMap<>(baseSettings);
+            settings.put(Environment.PATH_DATA_SETTING.getKey(), path.toString());
+        }
+        return prepareEnvironment(Settings.EMPTY, settings, null, () -> "UpdaterNode");
+    }
+
+    /**
+     * What was done to one target, {@link #failure} is null if it succeeded.
+     */
+    public static class NodeReport {
+
+        static final String HEADER = String.format(Locale.ROOT, "%-40s %-24s %-10s %8s %8s %10s  %s",
+                "target", "node id", "version", "indices", "changed", "took", "result");
+
+        final String target;
+        String nodeId;
+        Version nodeVersion;
+        boolean nodeChanged;
+        int indices;
+        int changedIndices;
+        TimeValue took;
+        String failure;
+
+        NodeReport(String target) {
+            this.target = target;
+        }
+
+        private void fail(Exception e, long tookNanos) {
+            failure = e.getMessage() == null ? e.toString() : e.getMessage();
+            took = TimeValue.timeValueNanos(tookNanos);
+        }
+
+        public boolean isFailed() {
+            return failure != null;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%-40s %-24s %-10s %8d %8d %10s  %s",
+                    target,
+                    nodeId == null ? "-" : nodeId,
+                    nodeVersion == null ? "-" : nodeVersion + (nodeChanged ? "*" : ""),
+                    indices, changedIndices, took,
+                    failure == null ? "ok" : failure);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package updater;
+
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.index.Index;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Case-insensitive lookup of indices by name or UUID, built once per load. Exact names and UUIDs are hashed, names are also kept
+ * sorted so that a wildcard pattern such as {@code logs-2026.*} only scans the names sharing its literal prefix.
+ */
+public class IndexLookup {
+
+    private final Map<String, List<Index>> byNameOrUUID = new HashMap<>();
+    private final NavigableMap<String, List<Index>> sortedNames = new TreeMap<>();
+
+    public IndexLookup(Collection<Index> indices) {
+        for (Index index : indices) {
+            String name = index.getName().toLowerCase(Locale.ROOT);
+            byNameOrUUID.computeIfAbsent(name, k -> new ArrayList<>(1)).add(index);
+            byNameOrUUID.computeIfAbsent(index.getUUID().toLowerCase(Locale.ROOT), k -> new ArrayList<>(1)).add(index);
+            sortedNames.computeIfAbsent(name, k -> new ArrayList<>(1)).add(index);
+        }
+    }
+
+    /**
+     * Returns the indices whose name or UUID equals the given one ignoring case, or whose name matches it if it contains {@code *}.
+     */
+    public List<Index> find(String nameOrPattern) {
+        if (nameOrPattern == null || nameOrPattern.isEmpty()) {
+            return Collections.emptyList();
+        }
+        String key = nameOrPattern.toLowerCase(Locale.ROOT);
+        if (Regex.isSimpleMatchPattern(key) == false) {
+            return byNameOrUUID.getOrDefault(key, Collections.emptyList());
+        }
+        String prefix = key.substring(0, key.indexOf('*'));
+        NavigableMap<String, List<Index>> candidates = prefix.isEmpty()
+                ? sortedNames
+                : sortedNames.subMap(prefix, true, prefix + Character.MAX_VALUE, true);
+        List<Index> found = new ArrayList<>();
+        for (Map.Entry<String, List<Index>> entry : candidates.entrySet()) {
+            if (Regex.simpleMatch(key, entry.getKey())) {
+                found.addAll(entry.getValue());
+            }
+        }
+        return found;
+    }
+}
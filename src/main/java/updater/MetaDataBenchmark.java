@@ -0,0 +1,185 @@
+package updater;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.CheckedRunnable;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.gateway.ParallelStateWriter;
+import org.elasticsearch.gateway.WriteStateException;
+import org.elasticsearch.index.Index;
+
+import javax.management.ObjectName;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs an operation for a number of warmup and measured iterations and reports its throughput, the bytes allocated and the GC activity
+ * of the measured iterations, similar to what JMH reports with the GC profiler. The allocated bytes are summed over all threads, so the
+ * work of the writer pool of a parallel write is included, as is whatever else the JVM allocates meanwhile. The allocation is reported
+ * as unknown (NaN) if a thread started during the iterations ended before them, what it allocated cannot be read anymore: a parallel
+ * load runs on a pool of its own that is shut down after each load.
+ */
+public class MetaDataBenchmark {
+
+    private static final double MB = 1024 * 1024;
+
+    public static String run(String name, int warmup, int iterations, CheckedRunnable<Exception> operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run();
+        }
+
+        final Allocation allocationBefore = Allocation.snapshot();
+        final long gcCountBefore = gcCount();
+        final long gcTimeBefore = gcTimeMillis();
+        final long startNS = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run();
+        }
+        final long elapsedNS = System.nanoTime() - startNS;
+        final long allocated = allocationBefore == null ? -1 : allocationBefore.allocatedSince();
+
+        final double seconds = elapsedNS / 1e9;
+        return String.format(Locale.ROOT,
+                "%-20s %6d ops %10.3f ops/s %12.3f ms/op %10.3f MB/op %10.3f MB/s   gc: %d, %d ms",
+                name, iterations,
+                iterations / seconds,
+                elapsedNS / 1e6 / iterations,
+                allocated < 0 ? Double.NaN : allocated / MB / iterations,
+                allocated < 0 ? Double.NaN : allocated / MB / seconds,
+                gcCount() - gcCountBefore,
+                gcTimeMillis() - gcTimeBefore);
+    }
+
+    /**
+     * The data paths of a node that only ever holds what the write benchmark wrote: the global state, the index state files under
+     * {@code indices/{index_uuid}} and the manifest referencing them, written with the same formats and writer as the gateway.
+     */
+    static class ScratchNode {
+
+        private final Path[] dataPaths;
+        private final Map<Index, Long> indexGenerations = new HashMap<>();
+        private long globalGeneration = -1;
+
+        ScratchNode(Path[] dataPaths) {
+            this.dataPaths = dataPaths;
+        }
+
+        /**
+         * Writes the global state unless it is null, then the given indices and a new manifest.
+         */
+        void write(MetaData globalMetaData, Collection<IndexMetaData> indices) throws WriteStateException {
+            if (globalMetaData != null) {
+                globalGeneration = ParallelStateWriter.writeAndCleanup(MetaData.FORMAT, globalMetaData, dataPaths);
+            }
+            for (IndexMetaData indexMetaData : indices) {
+                final Path[] indexPaths = new Path[dataPaths.length];
+                for (int i = 0; i < dataPaths.length; i++) {
+                    indexPaths[i] = dataPaths[i].resolve(NodeEnvironment.INDICES_FOLDER).resolve(indexMetaData.getIndexUUID());
+                }
+                indexGenerations.put(indexMetaData.getIndex(),
+                        ParallelStateWriter.writeAndCleanup(IndexMetaData.FORMAT, indexMetaData, indexPaths));
+            }
+            ParallelStateWriter.writeAndCleanup(Manifest.FORMAT,
+                    new Manifest(0L, 0L, globalGeneration, new HashMap<>(indexGenerations)), dataPaths);
+        }
+    }
+
+    /**
+     * Counts the live instances of the given classes, after the full GC the class histogram of the JVM runs first.
+     */
+    static Map<String, Long> liveInstances(Collection<String> classNames) throws Exception {
+        final String histogram = (String) ManagementFactory.getPlatformMBeanServer().invoke(
+                new ObjectName("com.sun.management:type=DiagnosticCommand"), "gcClassHistogram",
+                new Object[] {new String[0]}, new String[] {String[].class.getName()});
+        final Map<String, Long> instances = new HashMap<>();
+        for (String className : classNames) {
+            instances.put(className, 0L);
+        }
+        // "   num:  #instances  #bytes  class name (module)"
+        for (String line : histogram.split("\n")) {
+            final String[] columns = line.trim().split("\\s+");
+            if (columns.length >= 4 && instances.containsKey(columns[3])) {
+                instances.put(columns[3], Long.parseLong(columns[1]));
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * The bytes allocated so far by each live thread and the number of threads started so far.
+     */
+    private static class Allocation {
+
+        private final Map<Long, Long> threads = new HashMap<>();
+        private final long startedThreads;
+
+        private Allocation(com.sun.management.ThreadMXBean threadMXBean) {
+            final long[] threadIds = threadMXBean.getAllThreadIds();
+            final long[] allocated = threadMXBean.getThreadAllocatedBytes(threadIds);
+            for (int i = 0; i < threadIds.length; i++) {
+                // -1 for a thread that ended meanwhile
+                if (allocated[i] >= 0) {
+                    threads.put(threadIds[i], allocated[i]);
+                }
+            }
+            startedThreads = threadMXBean.getTotalStartedThreadCount();
+        }
+
+        /**
+         * Returns a snapshot, or null if the JVM does not count the allocated bytes.
+         */
+        static Allocation snapshot() {
+            final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+                return new Allocation((com.sun.management.ThreadMXBean) threadMXBean);
+            }
+            return null;
+        }
+
+        /**
+         * Sums what the threads allocated since this snapshot, threads started in between count from zero. Returns -1 if a thread
+         * started in between has already ended.
+         */
+        long allocatedSince() {
+            final Allocation after = snapshot();
+            long allocated = 0;
+            long startedAlive = 0;
+            for (Map.Entry<Long, Long> thread : after.threads.entrySet()) {
+                final Long before = threads.get(thread.getKey());
+                if (before == null) {
+                    startedAlive++;
+                }
+                allocated += thread.getValue() - (before == null ? 0 : before);
+            }
+            return startedAlive < after.startedThreads - startedThreads ? -1 : allocated;
+        }
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : gcBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : gcBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    private static List<GarbageCollectorMXBean> gcBeans() {
+        return ManagementFactory.getGarbageCollectorMXBeans();
+    }
+}
@@ -0,0 +1,198 @@
+package updater;
+
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.coordination.CoordinationMetaData;
+import org.elasticsearch.cluster.coordination.CoordinationMetaData.VotingConfiguration;
+import org.elasticsearch.cluster.metadata.IndexGraveyard;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexTemplateMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.metadata.RepositoriesMetaData;
+import org.elasticsearch.cluster.metadata.RepositoryMetaData;
+import org.elasticsearch.common.UUIDs;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.env.NodeMetaData;
+import org.elasticsearch.gateway.MetaDataStateFormat;
+import org.elasticsearch.gateway.ParallelStateWriter;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Generates the on-disk state of a single node holding a large synthetic cluster: node-N.st, global-N.st with templates and customs,
+ * one state-N.st per index and the manifest-N.st referencing them, written with the same {@link MetaDataStateFormat}s as the gateway.
+ * Every index is derived from the seed and its ordinal only, so the output is the same for a given seed whatever the parallelism.
+ */
+public class MetaDataGenerator {
+
+    private static final String[] PREFIXES = {"logs", "metrics", "traces", "events"};
+    private static final String[] FIELD_TYPES = {"keyword", "text", "long", "integer", "date", "double", "boolean", "ip"};
+    // 2020-01-01T00:00:00Z
+    private static final long BASE_CREATION_DATE = 1577836800000L;
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private final long seed;
+    private final int indexCount;
+    private final int fieldCount;
+    private final int templateCount;
+    private final int customCount;
+
+    public MetaDataGenerator(long seed, int indexCount, int fieldCount, int templateCount, int customCount) {
+        this.seed = seed;
+        this.indexCount = indexCount;
+        this.fieldCount = fieldCount;
+        this.templateCount = templateCount;
+        this.customCount = customCount;
+    }
+
+    /**
+     * Writes the state into the given node paths ({@code {path.data}/nodes/0}), which must not contain any state yet.
+     */
+    public void generate(Path[] nodePaths, int parallelism) throws IOException {
+        for (Path nodePath : nodePaths) {
+            Path stateDir = nodePath.resolve(MetaDataStateFormat.STATE_DIR_NAME);
+            if (Files.exists(stateDir)) {
+                throw new IllegalArgumentException(stateDir + " already exists, refusing to overwrite it");
+            }
+        }
+
+        final String nodeId = UUIDs.randomBase64UUID(random(-1));
+        ParallelStateWriter.writeAndCleanup(NodeMetaData.FORMAT, new NodeMetaData(nodeId, Version.CURRENT), nodePaths);
+
+        final Map<Index, Long> indexGenerations;
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            indexGenerations = pool.submit(() -> IntStream.range(0, indexCount).parallel()
+                    .mapToObj(i -> writeIndex(indexMetaData(i), nodePaths))
+                    .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing index metadata", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("failed to write index metadata", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        final long globalGeneration = ParallelStateWriter.write(MetaData.FORMAT, globalMetaData(nodeId), nodePaths);
+        ParallelStateWriter.writeAndCleanup(Manifest.FORMAT, new Manifest(1L, 1L, globalGeneration, indexGenerations), nodePaths);
+    }
+
+    private static Map.Entry<Index, Long> writeIndex(IndexMetaData indexMetaData, Path[] nodePaths) {
+        final Path[] indexPaths = new Path[nodePaths.length];
+        for (int i = 0; i < nodePaths.length; i++) {
+            indexPaths[i] = nodePaths[i].resolve(NodeEnvironment.INDICES_FOLDER).resolve(indexMetaData.getIndexUUID());
+        }
+        try {
+            return Map.entry(indexMetaData.getIndex(), ParallelStateWriter.write(IndexMetaData.FORMAT, indexMetaData, indexPaths));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    IndexMetaData indexMetaData(int ordinal) {
+        final Random random = random(ordinal);
+        final String name = PREFIXES[ordinal % PREFIXES.length] + "-app" + random.nextInt(Math.max(1, templateCount)) + "-" + ordinal;
+        final Settings settings = Settings.builder()
+                .put(IndexMetaData.SETTING_VERSION_CREATED, Version.CURRENT)
+                .put(IndexMetaData.SETTING_INDEX_UUID, UUIDs.randomBase64UUID(random))
+                .put(IndexMetaData.SETTING_INDEX_PROVIDED_NAME, name)
+                .put(IndexMetaData.SETTING_CREATION_DATE, BASE_CREATION_DATE + ordinal * 60_000L)
+                .put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1 + random.nextInt(5))
+                .put(IndexMetaData.SETTING_NUMBER_OF_REPLICAS, random.nextInt(2))
+                .build();
+        try {
+            return IndexMetaData.builder(name)
+                    .settings(settings)
+                    .putMapping(new MappingMetaData("_doc", Collections.singletonMap("_doc", properties(random, fieldCount))))
+                    .build();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    MetaData globalMetaData(String nodeId) throws IOException {
+        final Random random = random(-2);
+        final VotingConfiguration votingConfiguration = new VotingConfiguration(Collections.singleton(nodeId));
+        final MetaData.Builder builder = MetaData.builder()
+                .clusterUUID(UUIDs.randomBase64UUID(random))
+                .clusterUUIDCommitted(true)
+                .version(1L)
+                .coordinationMetaData(CoordinationMetaData.builder()
+                        .term(1L)
+                        .lastAcceptedConfiguration(votingConfiguration)
+                        .lastCommittedConfiguration(votingConfiguration)
+                        .build())
+                .persistentSettings(Settings.builder()
+                        .put("cluster.max_shards_per_node", Math.max(1000, indexCount * 5))
+                        .build());
+
+        for (int t = 0; t < templateCount; t++) {
+            final String prefix = PREFIXES[t % PREFIXES.length];
+            builder.put(IndexTemplateMetaData.builder("template-" + t)
+                    .order(t)
+                    .patterns(Collections.singletonList(prefix + "-app" + t + "-*"))
+                    .settings(Settings.builder().put(IndexMetaData.SETTING_NUMBER_OF_SHARDS, 1 + random.nextInt(5)))
+                    .putMapping("_doc", new CompressedXContent(BytesReference.bytes(XContentFactory.jsonBuilder()
+                            .map(Collections.singletonMap("_doc", properties(random, Math.max(1, fieldCount / 5)))))))
+                    .build());
+        }
+
+        final List<RepositoryMetaData> repositories = new ArrayList<>(customCount);
+        // IndexGraveyard.Builder#addTombstone stamps the current time and a tombstone with a given delete date can only be built
+        // from the wire format in this version, so the delete dates are derived from the ordinal and read back as a graveyard
+        final BytesStreamOutput tombstones = new BytesStreamOutput();
+        tombstones.writeVInt(customCount);
+        for (int c = 0; c < customCount; c++) {
+            repositories.add(new RepositoryMetaData("repository-" + c, "fs",
+                    Settings.builder().put("location", "/mnt/backup/repository-" + c).put("compress", random.nextBoolean()).build()));
+            new Index("deleted-" + c, UUIDs.randomBase64UUID(random)).writeTo(tombstones);
+            tombstones.writeLong(BASE_CREATION_DATE + c * 60_000L);
+        }
+        if (repositories.isEmpty() == false) {
+            builder.putCustom(RepositoriesMetaData.TYPE, new RepositoriesMetaData(repositories));
+        }
+        builder.indexGraveyard(new IndexGraveyard(tombstones.bytes().streamInput()));
+        return builder.build();
+    }
+
+    private static Map<String, Object> properties(Random random, int fields) {
+        final Map<String, Object> properties = new LinkedHashMap<>();
+        for (int f = 0; f < fields; f++) {
+            if (f % 10 == 9) {
+                // every tenth field is an object with a few sub fields, as log documents usually have
+                properties.put("object_" + f, properties(random, 5));
+            } else {
+                properties.put("field_" + f, Collections.singletonMap("type", FIELD_TYPES[random.nextInt(FIELD_TYPES.length)]));
+            }
+        }
+        return Collections.singletonMap("properties", properties);
+    }
+
+    private Random random(long ordinal) {
+        return new Random(seed ^ (ordinal * GOLDEN_GAMMA));
+    }
+}
@@ -8,20 +8,24 @@ import org.elasticsearch.cli.Terminal;
 import org.elasticsearch.cluster.coordination.CoordinationMetaData;
 import org.elasticsearch.cluster.metadata.*;
 import org.elasticsearch.cluster.metadata.MetaData.Custom;
+import org.elasticsearch.cluster.metadata.OpaqueCustom;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.CheckedFunction;
 import org.elasticsearch.common.xcontent.ToXContent;
-import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.env.NodeMetaData;
+import org.elasticsearch.gateway.LazyMetaData;
 import org.elasticsearch.index.Index;
-import org.elasticsearch.transport.TransportService;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.PrintStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 public class MetaDataPrinter {
@@ -31,6 +35,8 @@ public class MetaDataPrinter {
     private static final String TAB2 = "  ";
     private static final String TAB3 = "   ";
 
+    private static final ToXContent.Params RAW_MAPPINGS = new ToXContent.MapParams(Collections.singletonMap("raw_mappings", "true"));
+
     public static String metaDataString(NodeMetaData nodeMetaData) {
         StringBuilder sb = new StringBuilder();
         sb.append("NodeMetaData:\n");
@@ -39,171 +45,299 @@ public class MetaDataPrinter {
         return sb.toString();
     }
 
-    public static String metaDataString(Manifest manifest, int num, String name) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Manifest:\n");
-        sb.append(TAB2).append("currentTerm: ").append(manifest.getCurrentTerm()).append("\n");
-        sb.append(TAB2).append("clusterStateVersion: ").append(manifest.getClusterStateVersion()).append("\n");
-        sb.append(TAB2).append("globalGeneration: ").append(manifest.getGlobalGeneration()).append("\n");
-        sb.append(TAB2).append(String.format("indexGenerations: (%s)", manifest.getIndexGenerations().size())).append("\n");
-        if (name != null && name.length() > 0) {
-            manifest.getIndexGenerations().forEach((k, v) -> {
-                if (k.getName().equalsIgnoreCase(name) || k.getUUID().equalsIgnoreCase(name)) {
-                    sb.append(TAB2).append(TAB2).append(k).append(", ").append("generation: ").append(v).append("\n");
+    /**
+     * Prints the manifest, with the generations of the given indices only, or of the first {@code num} ones if {@code indices} is null.
+     */
+    public static void print(MetaDataWriter out, Manifest manifest, int num, Collection<Index> indices) throws IOException {
+        out.append("Manifest:\n");
+        out.append(TAB2).append("currentTerm: ").append(manifest.getCurrentTerm()).append("\n");
+        out.append(TAB2).append("clusterStateVersion: ").append(manifest.getClusterStateVersion()).append("\n");
+        out.append(TAB2).append("globalGeneration: ").append(manifest.getGlobalGeneration()).append("\n");
+        out.append(TAB2).append(String.format("indexGenerations: (%s)", manifest.getIndexGenerations().size())).append("\n");
+        if (indices != null) {
+            for (Index index : indices) {
+                Long generation = manifest.getIndexGenerations().get(index);
+                if (generation != null) {
+                    out.append(TAB2).append(TAB2).append(index).append(", ").append("generation: ").append(generation).append("\n");
                 }
-            });
+            }
         } else {
             int count = 0;
             for (Map.Entry<Index, Long> index : manifest.getIndexGenerations().entrySet()) {
                 if (num >= 0 && (++count) > num) {
-                    sb.append(TAB2).append(TAB2).append("...\n");
+                    out.append(TAB2).append(TAB2).append("...\n");
                     break;
                 }
-                sb.append(TAB2).append(TAB2)
+                out.append(TAB2).append(TAB2)
                         .append(index.getKey().toString()).append(", ")
                         .append("generation: ").append(index.getValue()).append("\n");
             }
         }
-        return sb.toString();
     }
 
-    public static String metaDataString(MetaData metaData, int num, int limit, String tempName) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("MetaData:\n");
-        sb.append(TAB2).append("cluster_uuid: ").append(metaData.clusterUUID())
+    public static void print(MetaDataWriter out, MetaData metaData, int num, int limit, String tempName, boolean rawMappings)
+            throws IOException {
+        List<Index> indices = new ArrayList<>(metaData.getIndices().size());
+        for (IndexMetaData indexMetaData : metaData) {
+            indices.add(indexMetaData.getIndex());
+        }
+        print(out, metaData, indices, metaData::index, num, limit, tempName, rawMappings);
+    }
+
+    public static void print(MetaDataWriter out, LazyMetaData lazyMetaData, int num, int limit, String tempName, boolean rawMappings)
+            throws IOException {
+        print(out, lazyMetaData.getGlobalMetaData(), lazyMetaData.indices(), lazyMetaData::get, num, limit, tempName, rawMappings);
+    }
+
+    /**
+     * The {@link IndexMetaData} of each index is only asked for in the per-index {@code try}, so that an index whose state file cannot
+     * be read is logged and skipped in lazy mode too.
+     */
+    private static void print(MetaDataWriter out, MetaData metaData, Collection<Index> indices,
+                              CheckedFunction<Index, IndexMetaData, IOException> indexMetaDataReader,
+                              int num, int limit, String tempName, boolean rawMappings) throws IOException {
+        ToXContent.Params indexParams = indexParams(rawMappings, limit);
+        out.append("MetaData:\n");
+        out.append(TAB2).append("cluster_uuid: ").append(metaData.clusterUUID())
                 .append(" [committed: ").append(metaData.clusterUUIDCommitted()).append("]").append("\n");
-        sb.append(TAB2).append("version: ").append(metaData.version()).append("\n");
+        out.append(TAB2).append("version: ").append(metaData.version()).append("\n");
 
         CoordinationMetaData coordinationMetaData = metaData.coordinationMetaData();
-        sb.append(TAB2).append("coordination_metadata:\n");
-        sb.append(TAB2).append(TAB3).append("term: ").append(coordinationMetaData.term()).append("\n");
-        sb.append(TAB2).append(TAB3).append("last_committed_config: ").append(coordinationMetaData.getLastCommittedConfiguration()).append("\n");
-        sb.append(TAB2).append(TAB3).append("last_accepted_config: ").append(coordinationMetaData.getLastAcceptedConfiguration()).append("\n");
-        sb.append(TAB2).append(TAB3).append("voting_config_exclusions: ").append(coordinationMetaData.getVotingConfigExclusions()).append("\n");
+        out.append(TAB2).append("coordination_metadata:\n");
+        out.append(TAB2).append(TAB3).append("term: ").append(coordinationMetaData.term()).append("\n");
+        out.append(TAB2).append(TAB3).append("last_committed_config: ").append(coordinationMetaData.getLastCommittedConfiguration()).append("\n");
+        out.append(TAB2).append(TAB3).append("last_accepted_config: ").append(coordinationMetaData.getLastAcceptedConfiguration()).append("\n");
+        out.append(TAB2).append(TAB3).append("voting_config_exclusions: ").append(coordinationMetaData.getVotingConfigExclusions()).append("\n");
 
-        sb.append(TAB2).append(String.format("persistent_settings: (%s)\n", metaData.persistentSettings().size()));
+        out.append(TAB2).append(String.format("persistent_settings: (%s)\n", metaData.persistentSettings().size()));
         if (!metaData.persistentSettings().isEmpty()) {
-            sb.append(TAB2).append(TAB3).append(metaData.persistentSettings().toString()).append("\n");
+            out.append(TAB2).append(TAB3).append(metaData.persistentSettings().toString()).append("\n");
         }
-        sb.append(TAB2).append(String.format("transient_settings: (%s)\n", metaData.transientSettings().size()));
+        out.append(TAB2).append(String.format("transient_settings: (%s)\n", metaData.transientSettings().size()));
         if (!metaData.transientSettings().isEmpty()) {
-            sb.append(TAB2).append(TAB3).append(metaData.transientSettings().toString()).append("\n");
+            out.append(TAB2).append(TAB3).append(metaData.transientSettings().toString()).append("\n");
         }
-        sb.append(TAB2).append(String.format("hashes_of_consistent_settings: (%s)\n", metaData.hashesOfConsistentSettings().size()));
+        out.append(TAB2).append(String.format("hashes_of_consistent_settings: (%s)\n", metaData.hashesOfConsistentSettings().size()));
         if (!metaData.hashesOfConsistentSettings().isEmpty()) {
-            sb.append(TAB2).append(TAB3).append(metaData.hashesOfConsistentSettings().toString()).append("\n");
+            out.append(TAB2).append(TAB3).append(metaData.hashesOfConsistentSettings().toString()).append("\n");
         }
 
-        sb.append(TAB2).append(String.format("templates: (%s)\n", metaData.templates().size()));
+        out.append(TAB2).append(String.format("templates: (%s)\n", metaData.templates().size()));
         int count = 0;
         for (ObjectCursor<IndexTemplateMetaData> cursor : metaData.templates().values()) {
             try {
                 if (tempName != null && tempName.length() > 0) {
                     if (cursor.value.getName().equalsIgnoreCase(tempName)) {
-                        XContentBuilder xContentBuilder = XContentFactory.contentBuilder(XContentType.JSON).startObject();
-                        IndexTemplateMetaDataPrinter.toInnerXContentWithTypes(
-                                cursor.value, xContentBuilder, ToXContent.EMPTY_PARAMS).endObject().flush();
-                        sb.append(TAB2).append(TAB3)
-                                .append(cursor.value.getName()).append(": ")
-                                .append(xContentBuilder.getOutputStream().toString()).append("\n");
+                        out.append(TAB2).append(TAB3).append(cursor.value.getName()).append(": ");
+                        out.appendJson(builder -> IndexTemplateMetaDataPrinter.toInnerXContentWithTypes(
+                                cursor.value, builder.startObject(), ToXContent.EMPTY_PARAMS).endObject(), -1);
+                        out.append("\n");
                     }
                     continue;
                 }
                 if (num >= 0 && ++count > num) {
-                    sb.append(TAB2).append(TAB3).append("...\n");
+                    out.append(TAB2).append(TAB3).append("...\n");
                     break;
                 }
-                XContentBuilder xContentBuilder = XContentFactory.contentBuilder(XContentType.JSON).startObject();
-                IndexTemplateMetaDataPrinter.toInnerXContentWithTypes(
-                        cursor.value, xContentBuilder, ToXContent.EMPTY_PARAMS).endObject().flush();
-                sb.append(TAB2).append(TAB3)
-                        .append(cursor.value.getName()).append(": ")
-                        .append(limitStr(xContentBuilder.getOutputStream().toString(), limit)).append("\n");
+                out.append(TAB2).append(TAB3).append(cursor.value.getName()).append(": ");
+                out.appendJson(builder -> IndexTemplateMetaDataPrinter.toInnerXContentWithTypes(
+                        cursor.value, builder.startObject(), ToXContent.EMPTY_PARAMS).endObject(), limit);
+                out.append("\n");
             } catch (Exception e) {
                 logger.error("parse templates[{}] error: {}", cursor.value.getName(), e.toString());
             }
         }
 
-        sb.append(TAB2).append(String.format("indices: (%s)\n", metaData.getIndices().size()));
+        out.append(TAB2).append(String.format("indices: (%s)\n", indices.size()));
         count = 0;
-        for (IndexMetaData indexMetaData : metaData) {
+        for (Index index : indices) {
             try {
                 if (num >= 0 && (++count) > num) {
-                    sb.append(TAB2).append(TAB3).append("...\n");
+                    out.append(TAB2).append(TAB3).append("...\n");
                     break;
                 }
-                XContentBuilder xContentBuilder = XContentFactory.contentBuilder(XContentType.JSON).startObject();
-                indexMetaData.toXContent(xContentBuilder, ToXContent.EMPTY_PARAMS).endObject().flush();
-                sb.append(TAB2).append(TAB3)
-                        .append(indexMetaData.getIndex()).append(": ")
-                        .append(limitStr(xContentBuilder.getOutputStream().toString(), limit)).append("\n");
+                IndexMetaData indexMetaData = indexMetaDataReader.apply(index);
+                out.append(TAB2).append(TAB3).append(index).append(": ");
+                out.appendJson(builder -> indexMetaData.toXContent(builder.startObject(), indexParams).endObject(), limit);
+                out.append("\n");
             } catch (Exception e) {
-                logger.error("parse index[{}] error: {}", indexMetaData.getIndex().getName(), e.toString());
+                logger.error("parse index[{}] error: {}", index.getName(), e.toString());
             }
         }
 
-        sb.append(TAB2).append(String.format("customs: (%s)\n", metaData.customs().size()));
+        out.append(TAB2).append(String.format("customs: (%s)\n", metaData.customs().size()));
         if (!metaData.customs().isEmpty()) {
             for (final ObjectObjectCursor<String, Custom> cursor : metaData.customs()) {
                 final String type = cursor.key;
                 final MetaData.Custom custom = cursor.value;
                 try {
-                    XContentBuilder xContentBuilder = XContentFactory.contentBuilder(XContentType.JSON).startObject();
-                    custom.toXContent(xContentBuilder, ToXContent.EMPTY_PARAMS).endObject().flush();
-                    sb.append(TAB2).append(TAB3)
-                            .append(type).append(": ")
-                            .append(limitStr(xContentBuilder.getOutputStream().toString(), limit)).append("\n");
+                    // 没有注册解析器的 custom 按原始内容输出
+                    out.append(TAB2).append(TAB3).append(type).append(custom instanceof OpaqueCustom ? " (raw): " : ": ");
+                    out.appendJson(builder -> custom.toXContent(builder.startObject(), ToXContent.EMPTY_PARAMS).endObject(), limit);
+                    out.append("\n");
                 } catch (Exception e) {
                     logger.error("parse customs[{}] error: {}", type, e.toString());
                 }
             }
         }
-        return sb.toString();
     }
 
-    public static String metaDataString(MetaData metaData, String name) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("IndexMetaData:\n");
-        if (name != null && name.length() > 0) {
-            for (IndexMetaData indexMetaData : metaData) {
-                try {
-                    if (indexMetaData.getIndex().getName().equalsIgnoreCase(name)
-                        || indexMetaData.getIndex().getUUID().equalsIgnoreCase(name)) {
-                        XContentBuilder xContentBuilder = XContentFactory.contentBuilder(XContentType.JSON).startObject();
-                        indexMetaData.toXContent(xContentBuilder, ToXContent.EMPTY_PARAMS).endObject().flush();
-                        sb.append(TAB2).append(TAB3)
-                                .append(indexMetaData.getIndex()).append(": ")
-                                .append(xContentBuilder.getOutputStream()).append("\n");
-                    }
-                } catch (Exception e) {
-                    logger.error("parse index[{}] error: {}", name, e.toString());
+    /**
+     * With {@code rawMappings} the stored mapping sources are decompressed straight into the output, see
+     * {@link IndexMetaData.Builder#toXContent}, instead of being parsed into maps and serialized again. A limited output always
+     * takes this path, parsing would decompress every mapping as a whole before the first byte reaches the limit.
+     */
+    private static ToXContent.Params indexParams(boolean rawMappings, int limit) {
+        return rawMappings || limit >= 0 ? RAW_MAPPINGS : ToXContent.EMPTY_PARAMS;
+    }
+
+    /**
+     * Prints global-x.st and the first {@code num} state-x.st of the manifest as they are stored, field by field in file order, without
+     * building MetaData or IndexMetaData. Values nested deeper than {@code depth} are elided, -1 prints everything.
+     */
+    public static void printRaw(MetaDataWriter out, StateTranscoder transcoder, int num, int limit, String tempName, int depth)
+            throws IOException {
+        out.append("MetaData: (").append(transcoder.globalStateFileName()).append(")\n");
+        transcoder.global(parser -> {
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                String name = parser.currentName();
+                XContentParser.Token token = parser.nextToken();
+                if ("templates".equals(name) && token == XContentParser.Token.START_OBJECT) {
+                    printRawTemplates(out, parser, num, limit, tempName, depth);
+                } else if (token.isValue()) {
+                    out.append(TAB2).append(name).append(": ").append(parser.text()).append("\n");
+                } else {
+                    out.append(TAB2).append(name).append(": ");
+                    out.appendJson(builder -> StateTranscoder.copy(parser, builder, depth), limit);
+                    out.append("\n");
                 }
             }
-        } else {
-            sb.append(TAB2).append(TAB3).append("not found");
+        });
+
+        Map<Index, Long> indexGenerations = transcoder.getManifest().getIndexGenerations();
+        out.append(TAB2).append(String.format("indices: (%s)\n", indexGenerations.size()));
+        int count = 0;
+        for (Map.Entry<Index, Long> entry : indexGenerations.entrySet()) {
+            if (num >= 0 && (++count) > num) {
+                out.append(TAB2).append(TAB3).append("...\n");
+                break;
+            }
+            printRaw(out, transcoder, entry.getKey(), limit, depth);
         }
-        return sb.toString();
     }
 
-    private static String limitStr(String str, int limit) {
-        if (str != null && limit >= 0 && str.length() > limit) {
-            return str.substring(0, limit);
+    private static void printRawTemplates(MetaDataWriter out, XContentParser parser, int num, int limit, String tempName, int depth)
+            throws IOException {
+        out.append(TAB2).append("templates:\n");
+        boolean named = tempName != null && tempName.length() > 0;
+        int count = 0;
+        while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+            String name = parser.currentName();
+            parser.nextToken();
+            count++;
+            if (named ? name.equalsIgnoreCase(tempName) == false : num >= 0 && count > num) {
+                if (named == false && count == num + 1) {
+                    out.append(TAB2).append(TAB3).append("...\n");
+                }
+                parser.skipChildren();
+                continue;
+            }
+            out.append(TAB2).append(TAB3).append(name).append(": ");
+            out.appendJson(builder -> StateTranscoder.copy(parser, builder, depth), named ? -1 : limit);
+            out.append("\n");
         }
-        return str;
+        out.append(TAB2).append(TAB3).append(String.format("(%s templates)\n", count));
     }
 
-    public static void show(String filePath, String content) {
+    /**
+     * Prints the state-x.st of the given indices as they are stored, see {@link #printRaw(MetaDataWriter, StateTranscoder, int, int,
+     * String, int)}.
+     */
+    public static void printRaw(MetaDataWriter out, StateTranscoder transcoder, Collection<Index> indices, int limit, int depth)
+            throws IOException {
+        out.append("IndexMetaData:\n");
+        if (indices.isEmpty()) {
+            out.append(TAB2).append(TAB3).append("not found");
+            return;
+        }
+        for (Index index : indices) {
+            printRaw(out, transcoder, index, limit, depth);
+        }
+    }
+
+    private static void printRaw(MetaDataWriter out, StateTranscoder transcoder, Index index, int limit, int depth) throws IOException {
+        try {
+            out.append(TAB2).append(TAB3).append(index).append(": ");
+            transcoder.index(index, parser -> out.appendJson(builder -> StateTranscoder.copy(parser, builder, depth), limit));
+            out.append("\n");
+        } catch (Exception e) {
+            logger.error("read index[{}] error: {}", index, e.toString());
+        }
+    }
+
+    public static void print(MetaDataWriter out, MetaData metaData, Collection<Index> indices, int limit, boolean rawMappings)
+            throws IOException {
+        ToXContent.Params indexParams = indexParams(rawMappings, limit);
+        out.append("IndexMetaData:\n");
+        if (indices.isEmpty()) {
+            out.append(TAB2).append(TAB3).append("not found");
+            return;
+        }
+        for (Index index : indices) {
+            try {
+                IndexMetaData indexMetaData = metaData.index(index);
+                out.append(TAB2).append(TAB3).append(index).append(": ");
+                out.appendJson(builder -> indexMetaData.toXContent(builder.startObject(), indexParams).endObject(), limit);
+                out.append("\n");
+            } catch (Exception e) {
+                logger.error("parse index[{}] error: {}", index, e.toString());
+            }
+        }
+    }
+
+    public static void print(MetaDataWriter out, LazyMetaData lazyMetaData, Collection<Index> indices, int limit, boolean rawMappings)
+            throws IOException {
+        ToXContent.Params indexParams = indexParams(rawMappings, limit);
+        out.append("IndexMetaData:\n");
+        if (indices.isEmpty()) {
+            out.append(TAB2).append(TAB3).append("not found");
+            return;
+        }
+        for (Index index : indices) {
+            try {
+                IndexMetaData indexMetaData = lazyMetaData.get(index);
+                out.append(TAB2).append(TAB3).append(index).append(": ");
+                out.appendJson(builder -> indexMetaData.toXContent(builder.startObject(), indexParams).endObject(), limit);
+                out.append("\n");
+            } catch (Exception e) {
+                logger.error("parse index[{}] error: {}", index, e.toString());
+            }
+        }
+    }
+
+    /**
+     * Prints to the given file, or to stdout if no file is given. Returns false if the output could not be written.
+     */
+    public static boolean show(String filePath, CheckedConsumer<MetaDataWriter, IOException> printer) {
         if (filePath != null && filePath.length() > 0) {
-            toFile(filePath, content);
+            return toFile(filePath, printer);
         } else {
-            Terminal.DEFAULT.println(content);
+            try (MetaDataWriter out = new MetaDataWriter(System.out, false)) {
+                printer.accept(out);
+                out.append("\n");
+                return true;
+            } catch (Exception e) {
+                Terminal.DEFAULT.errorPrintln("write output error!");
+                e.printStackTrace();
+                return false;
+            }
         }
     }
 
-    public static void toFile(String filePath, String content) {
+    public static boolean toFile(String filePath, CheckedConsumer<MetaDataWriter, IOException> printer) {
         if (filePath.endsWith(File.separator)) {
             Terminal.DEFAULT.errorPrintln(String.format("%s is not a file path!", filePath));
-            return;
+            return false;
         }
         int idx = filePath.lastIndexOf(File.separator);
         if (idx >= 0) {
@@ -213,7 +347,7 @@ public class MetaDataPrinter {
             } catch (Exception e) {
                 Terminal.DEFAULT.errorPrintln(String.format("create directory[%s] error!", dir));
                 e.printStackTrace();
-                return;
+                return false;
             }
         }
         boolean fileOk = true;
@@ -224,16 +358,19 @@ public class MetaDataPrinter {
             } catch (Exception e) {
                 Terminal.DEFAULT.errorPrintln(String.format("create file[%s] error!", filePath));
                 e.printStackTrace();
-                return;
+                return false;
             }
         }
         if (fileOk) {
-            try (PrintStream ps = new PrintStream(output)) {
-                ps.println(content);
+            try (MetaDataWriter out = new MetaDataWriter(new FileOutputStream(output), true)) {
+                printer.accept(out);
+                out.append("\n");
+                return true;
             } catch (Exception e) {
                 Terminal.DEFAULT.errorPrintln(String.format("write file[%s] error!", filePath));
                 e.printStackTrace();
             }
         }
+        return false;
     }
 }
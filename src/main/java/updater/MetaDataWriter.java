@@ -0,0 +1,154 @@
+package updater;
+
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered UTF-8 output of the printers. Text is appended as it is produced and XContent is serialized straight into the same
+ * stream, so a report is never held in memory as a whole.
+ */
+public class MetaDataWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final boolean closeTarget;
+
+    public MetaDataWriter(OutputStream target, boolean closeTarget) {
+        this.out = new BufferedOutputStream(target, BUFFER_SIZE);
+        this.closeTarget = closeTarget;
+    }
+
+    public MetaDataWriter append(Object value) throws IOException {
+        out.write(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    /**
+     * Serializes the content as JSON directly into the output, the builder is flushed but never closes the target.
+     */
+    public MetaDataWriter appendJson(CheckedConsumer<XContentBuilder, IOException> content) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder(new NonClosingOutputStream(out));
+        content.accept(builder);
+        builder.flush();
+        return this;
+    }
+
+    /**
+     * Serializes the content as JSON and keeps only its first {@code limit} bytes, cut back to the last complete UTF-8 character. The
+     * serialization is aborted once the JSON generator flushes past the limit, which it does every few kilobytes, so a truncated
+     * section costs time proportional to the limit and not to the size of the document, as long as the content does not prepare
+     * whole values before writing them (index mappings have to be written raw for that, see {@link MetaDataPrinter}).
+     */
+    public MetaDataWriter appendJson(CheckedConsumer<XContentBuilder, IOException> content, int limit) throws IOException {
+        if (limit < 0) {
+            return appendJson(content);
+        }
+        LimitedOutputStream limited = new LimitedOutputStream(limit);
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder(limited);
+            content.accept(builder);
+            builder.flush();
+        } catch (LimitReachedException e) {
+            // the builder is left unfinished on purpose
+        }
+        out.write(limited.bytes, 0, limited.completeLength());
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closeTarget) {
+            out.close();
+        } else {
+            out.flush();
+        }
+    }
+
+    /**
+     * Thrown by {@link LimitedOutputStream} to abort the serialization, without a stack trace as it is expected.
+     */
+    private static class LimitReachedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        LimitReachedException() {
+            super("output limit reached");
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static class LimitedOutputStream extends OutputStream {
+
+        private final byte[] bytes;
+        private int count;
+
+        LimitedOutputStream(int limit) {
+            this.bytes = new byte[limit];
+        }
+
+        /**
+         * The number of bytes up to the end of the last character whose UTF-8 encoding was written completely.
+         */
+        int completeLength() {
+            // walk back over the continuation bytes to the lead byte of the last character
+            int lead = count - 1;
+            while (lead >= 0 && count - lead < 4 && (bytes[lead] & 0xC0) == 0x80) {
+                lead--;
+            }
+            if (lead < 0) {
+                return count;
+            }
+            int b = bytes[lead] & 0xFF;
+            int length = b < 0x80 ? 1 : b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : 2;
+            return lead + length <= count ? count : lead;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == bytes.length) {
+                throw new LimitReachedException();
+            }
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int n = Math.min(len, bytes.length - count);
+            System.arraycopy(b, off, bytes, count, n);
+            count += n;
+            if (n < len) {
+                throw new LimitReachedException();
+            }
+        }
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package updater;
+
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.gateway.MappedStateReader;
+import org.elasticsearch.gateway.MetaDataStateFormat;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Lists the state files of every data path of a node with their generation, size and the checksum recorded in their footer, reading
+ * only the directories and the header and footer of each file, no content is parsed and no checksum is verified. The files of a folder
+ * are compared across the data paths: the node state folder is always listed, an index folder only if its files differ between the
+ * data paths (or with {@code all}), so the listing of a healthy node stays short.
+ */
+public class StateScanner {
+
+    private static final Pattern STATE_FILE = Pattern.compile("(node|manifest|global|state)-(\\d+)" +
+            Pattern.quote(MetaDataStateFormat.STATE_FILE_EXTENSION));
+
+    static final String HEADER = String.format(Locale.ROOT, "%-56s %10s %10s %10s  %s", "file", "generation", "size", "checksum", "path");
+
+    private final Path[] nodeDataPaths;
+    private final int parallelism;
+    private final boolean all;
+
+    public StateScanner(Path[] nodeDataPaths, int parallelism, boolean all) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("scan parallelism must be at least 1 but was [" + parallelism + "]");
+        }
+        this.nodeDataPaths = nodeDataPaths;
+        this.parallelism = parallelism;
+        this.all = all;
+    }
+
+    public Result scan() throws IOException, InterruptedException {
+        final long startNS = System.nanoTime();
+        // the index folders of all data paths, so that a folder missing on some of them is found
+        final Set<String> indexFolders = new TreeSet<>();
+        for (Path nodeDataPath : nodeDataPaths) {
+            final Path indicesPath = nodeDataPath.resolve(NodeEnvironment.INDICES_FOLDER);
+            if (Files.isDirectory(indicesPath)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(indicesPath, Files::isDirectory)) {
+                    for (Path indexPath : stream) {
+                        indexFolders.add(indexPath.getFileName().toString());
+                    }
+                }
+            }
+        }
+        final List<String> folders = new ArrayList<>(indexFolders.size() + 1);
+        folders.add(null);
+        folders.addAll(indexFolders);
+
+        final List<FolderScan> scans;
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            scans = pool.submit(() -> folders.parallelStream().map(this::scan).collect(Collectors.toList())).get();
+        } catch (ExecutionException e) {
+            throw new IOException("failed to scan state files", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        final Result result = new Result(nodeDataPaths, indexFolders.size());
+        for (FolderScan scan : scans) {
+            result.add(scan, all || scan.folder == null);
+        }
+        result.took = TimeValue.timeValueNanos(System.nanoTime() - startNS);
+        return result;
+    }
+
+    private FolderScan scan(String folder) {
+        final FolderScan scan = new FolderScan(folder);
+        for (int i = 0; i < nodeDataPaths.length; i++) {
+            final Path folderPath = folder == null
+                    ? nodeDataPaths[i] : nodeDataPaths[i].resolve(NodeEnvironment.INDICES_FOLDER).resolve(folder);
+            final Path stateDir = folderPath.resolve(MetaDataStateFormat.STATE_DIR_NAME);
+            final List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(stateDir, "*" + MetaDataStateFormat.STATE_FILE_EXTENSION)) {
+                stream.forEach(files::add);
+            } catch (NoSuchFileException e) {
+                continue;
+            } catch (IOException e) {
+                scan.errors.add("unreadable [" + stateDir + "]: " + e);
+                continue;
+            }
+            for (Path file : files) {
+                final Matcher matcher = STATE_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches() == false || "state".equals(matcher.group(1)) != (folder != null)) {
+                    continue;
+                }
+                final FileInfo info = new FileInfo(Long.parseLong(matcher.group(2)));
+                try {
+                    info.size = Files.size(file);
+                    info.checksum = MappedStateReader.readChecksum(file);
+                } catch (Exception e) {
+                    info.corrupt = true;
+                    scan.errors.add("corrupt [" + file + "]: " + (e.getMessage() == null ? e.toString() : e.getMessage()));
+                }
+                scan.files.computeIfAbsent(file.getFileName().toString(), k -> new FileInfo[nodeDataPaths.length])[i] = info;
+            }
+        }
+        return scan;
+    }
+
+    private static class FileInfo {
+
+        final long generation;
+        long size;
+        long checksum;
+        boolean corrupt;
+
+        FileInfo(long generation) {
+            this.generation = generation;
+        }
+
+        boolean sameAs(FileInfo other) {
+            return other != null && corrupt == false && other.corrupt == false && size == other.size && checksum == other.checksum;
+        }
+    }
+
+    /**
+     * The files of one folder on every data path, by file name and data path, null where a data path does not have the file.
+     */
+    private static class FolderScan {
+
+        // null for the node state folder
+        final String folder;
+        final Map<String, FileInfo[]> files = new TreeMap<>();
+        final List<String> errors = new ArrayList<>();
+
+        FolderScan(String folder) {
+            this.folder = folder;
+        }
+
+        static boolean agree(FileInfo[] infos) {
+            for (FileInfo info : infos) {
+                if (infos[0] == null || infos[0].sameAs(info) == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String file(String fileName) {
+            return (folder == null ? "" : NodeEnvironment.INDICES_FOLDER + "/" + folder + "/") + MetaDataStateFormat.STATE_DIR_NAME + "/" +
+                    fileName;
+        }
+    }
+
+    /**
+     * The listed files, in the order of the folders and file names, and the totals of all files.
+     */
+    public static class Result {
+
+        private final Path[] nodeDataPaths;
+        private final int indexFolders;
+        private final List<String> rows = new ArrayList<>();
+        private final List<String> errors = new ArrayList<>();
+        private final Map<String, Long> latestGenerations = new TreeMap<>();
+        private long files;
+        private long bytes;
+        private int differingIndexFolders;
+        TimeValue took;
+
+        Result(Path[] nodeDataPaths, int indexFolders) {
+            this.nodeDataPaths = nodeDataPaths;
+            this.indexFolders = indexFolders;
+        }
+
+        private void add(FolderScan scan, boolean list) {
+            boolean agree = scan.errors.isEmpty();
+            for (Map.Entry<String, FileInfo[]> entry : scan.files.entrySet()) {
+                final FileInfo[] infos = entry.getValue();
+                final boolean fileAgrees = FolderScan.agree(infos);
+                agree &= fileAgrees;
+                final String prefix = entry.getKey().substring(0, entry.getKey().indexOf('-'));
+                for (FileInfo info : infos) {
+                    if (info != null) {
+                        files++;
+                        bytes += info.size;
+                        latestGenerations.merge(prefix, info.generation, Math::max);
+                    }
+                }
+            }
+            if (agree == false && scan.folder != null) {
+                differingIndexFolders++;
+            }
+            if (list || agree == false) {
+                for (Map.Entry<String, FileInfo[]> entry : scan.files.entrySet()) {
+                    final String file = scan.file(entry.getKey());
+                    final FileInfo[] infos = entry.getValue();
+                    if (FolderScan.agree(infos)) {
+                        rows.add(row(file, infos[0], nodeDataPaths.length == 1
+                                ? nodeDataPaths[0].toString() : "* (all " + nodeDataPaths.length + " data paths)"));
+                    } else {
+                        for (int i = 0; i < infos.length; i++) {
+                            rows.add(row(file, infos[i], nodeDataPaths[i].toString()));
+                        }
+                    }
+                }
+            }
+            errors.addAll(scan.errors);
+        }
+
+        private static String row(String file, FileInfo info, String path) {
+            if (info == null) {
+                return String.format(Locale.ROOT, "%-56s %10s %10s %10s  %s", file, "-", "-", "missing", path);
+            }
+            return String.format(Locale.ROOT, "%-56s %10d %10s %10s  %s", file, info.generation, new ByteSizeValue(info.size),
+                    info.corrupt ? "corrupt" : String.format(Locale.ROOT, "%08x", info.checksum), path);
+        }
+
+        public void print(MetaDataWriter out) throws IOException {
+            out.append(HEADER).append("\n");
+            for (String row : rows) {
+                out.append(row).append("\n");
+            }
+            for (String error : errors) {
+                out.append(error).append("\n");
+            }
+            out.append(String.format(Locale.ROOT, "scanned [%s] state files (%s) of [%s] index folders on [%s] data paths in [%s], " +
+                            "[%s] index folders differ between the data paths, latest generations %s",
+                    files, new ByteSizeValue(bytes), indexFolders, nodeDataPaths.length, took, differingIndexFolders, latestGenerations));
+        }
+    }
+}
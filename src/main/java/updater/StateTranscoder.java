@@ -0,0 +1,187 @@
+package updater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.compress.CompressorFactory;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.gateway.MappedStateReader;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+
+/**
+ * Reads the global and index state files of a manifest for printing without building the {@link MetaData} or {@link IndexMetaData}
+ * they hold: the SMILE tokens of a file are copied straight into the JSON output by {@link #copy}. The files are the ones of the
+ * manifest the updater loaded, so the output matches the other print commands until the state is written by someone else.
+ */
+public class StateTranscoder {
+
+    private static final Logger logger = LogManager.getLogger(StateTranscoder.class);
+
+    private final Manifest manifest;
+    private final NodeEnvironment nodeEnvironment;
+
+    public StateTranscoder(Manifest manifest, NodeEnvironment nodeEnvironment) {
+        this.manifest = manifest;
+        this.nodeEnvironment = nodeEnvironment;
+    }
+
+    public Manifest getManifest() {
+        return manifest;
+    }
+
+    public String globalStateFileName() {
+        return MetaData.FORMAT.getStateFileName(manifest.getGlobalGeneration());
+    }
+
+    /**
+     * Hands the parser of the global state file to {@code reader}, positioned on the start of the {@code meta-data} object.
+     */
+    public void global(CheckedConsumer<XContentParser, IOException> reader) throws IOException {
+        if (manifest.isGlobalGenerationMissing()) {
+            throw new IllegalStateException("the manifest has no global state, the state was loaded without a manifest file");
+        }
+        final Boolean read = MappedStateReader.loadGeneration(MetaData.FORMAT, logger, parser -> {
+            enterObject(parser);
+            reader.accept(parser);
+            return Boolean.TRUE;
+        }, manifest.getGlobalGeneration(), nodeEnvironment.nodeDataPaths());
+        if (read == null) {
+            throw new IOException("failed to find global metadata [generation: " + manifest.getGlobalGeneration() + "]");
+        }
+    }
+
+    /**
+     * Hands the parser of the state file of the index to {@code reader}, positioned on the start of the content, the object holding
+     * the index by its name like {@link IndexMetaData#toXContent} prints it.
+     */
+    public void index(Index index, CheckedConsumer<XContentParser, IOException> reader) throws IOException {
+        final Long generation = manifest.getIndexGenerations().get(index);
+        if (generation == null) {
+            throw new IllegalArgumentException("index " + index + " is not in the manifest");
+        }
+        final Boolean read = MappedStateReader.loadGeneration(IndexMetaData.FORMAT, logger, parser -> {
+            parser.nextToken();
+            reader.accept(parser);
+            return Boolean.TRUE;
+        }, generation, nodeEnvironment.resolveIndexFolder(index.getUUID()));
+        if (read == null) {
+            throw new IOException("failed to find metadata for existing index " + index.getName() + " [location: " + index.getUUID() +
+                    ", generation: " + generation + "]");
+        }
+    }
+
+    // the content of the global state file is one object with the meta-data object
+    private static void enterObject(XContentParser parser) throws IOException {
+        if (parser.nextToken() != XContentParser.Token.START_OBJECT || parser.nextToken() != XContentParser.Token.FIELD_NAME
+                || parser.nextToken() != XContentParser.Token.START_OBJECT) {
+            throw new IllegalArgumentException("expected a state object but got " + parser.currentToken());
+        }
+    }
+
+    /**
+     * Copies the value the parser is on into the builder, leaving the parser on its last token, also if the builder fails. Objects
+     * and arrays nested deeper than {@code depth} are written as {@code "{...}"} and {@code "[...]"}, -1 copies everything. Compressed
+     * binary values, the mappings of indices and templates, are decompressed and copied as the maps {@link IndexMetaData#toXContent}
+     * prints.
+     */
+    public static void copy(XContentParser parser, XContentBuilder builder, int depth) throws IOException {
+        final Copier copier = new Copier(parser, builder, depth);
+        try {
+            copier.copyValue(0);
+        } catch (IOException | RuntimeException e) {
+            // the output gave up, typically because its limit is reached, the caller goes on reading after the value
+            copier.skipOpen();
+            throw e;
+        }
+    }
+
+    private static class Copier {
+
+        private final XContentParser parser;
+        private final XContentBuilder builder;
+        private final int maxDepth;
+        // the objects and arrays of the value the parser is in
+        private int open;
+
+        Copier(XContentParser parser, XContentBuilder builder, int maxDepth) {
+            this.parser = parser;
+            this.builder = builder;
+            this.maxDepth = maxDepth;
+        }
+
+        void copyValue(int depth) throws IOException {
+            final XContentParser.Token token = parser.currentToken();
+            if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+                if (maxDepth >= 0 && depth >= maxDepth) {
+                    parser.skipChildren();
+                    builder.value(token == XContentParser.Token.START_OBJECT ? "{...}" : "[...]");
+                    return;
+                }
+                open++;
+                if (token == XContentParser.Token.START_OBJECT) {
+                    builder.startObject();
+                    while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                        builder.field(parser.currentName());
+                        parser.nextToken();
+                        copyValue(depth + 1);
+                    }
+                    builder.endObject();
+                } else {
+                    builder.startArray();
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        copyValue(depth + 1);
+                    }
+                    builder.endArray();
+                }
+                open--;
+            } else if (token == XContentParser.Token.VALUE_EMBEDDED_OBJECT) {
+                final byte[] bytes = parser.binaryValue();
+                if (CompressorFactory.compressor(new BytesArray(bytes)) == null) {
+                    builder.value(bytes);
+                } else {
+                    copyCompressed(bytes, depth);
+                }
+            } else {
+                builder.generator().copyCurrentEvent(parser);
+            }
+        }
+
+        /**
+         * Copies the decompressed content in place of the binary value, the parser of the state file stays where it is.
+         */
+        @SuppressWarnings("deprecation")
+        private void copyCompressed(byte[] bytes, int depth) throws IOException {
+            // the compressed content is streamed through the parser, it is never decompressed as a whole
+            try (XContentParser compressed = XContentHelper.createParser(NamedXContentRegistry.EMPTY,
+                    LoggingDeprecationHandler.INSTANCE, new BytesArray(bytes))) {
+                compressed.nextToken();
+                new Copier(compressed, builder, maxDepth).copyValue(depth);
+            }
+        }
+
+        void skipOpen() throws IOException {
+            while (open > 0) {
+                final XContentParser.Token token = parser.nextToken();
+                if (token == null) {
+                    return;
+                }
+                if (token == XContentParser.Token.START_OBJECT || token == XContentParser.Token.START_ARRAY) {
+                    open++;
+                } else if (token == XContentParser.Token.END_OBJECT || token == XContentParser.Token.END_ARRAY) {
+                    open--;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package updater;
+
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.Manifest;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.env.NodeMetaData;
+import org.elasticsearch.gateway.MappedStateReader;
+import org.elasticsearch.gateway.MetaDataStateFormat;
+import org.elasticsearch.index.Index;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Verifies the node, manifest, global and index state files of every data path of a node. Every file is read the way the node reads
+ * it, so its codec header, footer checksum and content are checked, and the latest node state file, the latest manifest file and the
+ * global and index state files that manifest refers to must exist on every data path. The index folders of all data paths are
+ * verified in parallel. Nothing is written and no lock is taken, the files are verified as they are on disk, not as they are loaded.
+ */
+public class StateVerifier {
+
+    private static final Pattern STATE_FILE = Pattern.compile("(node|manifest|global|state)-(\\d+)" +
+            Pattern.quote(MetaDataStateFormat.STATE_FILE_EXTENSION));
+
+    private final Path[] nodeDataPaths;
+    private final NamedXContentRegistry xContentRegistry;
+    private final int parallelism;
+
+    public StateVerifier(Path[] nodeDataPaths, NamedXContentRegistry xContentRegistry, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("verify parallelism must be at least 1 but was [" + parallelism + "]");
+        }
+        this.nodeDataPaths = nodeDataPaths;
+        this.xContentRegistry = xContentRegistry;
+        this.parallelism = parallelism;
+    }
+
+    public Result verify() throws IOException, InterruptedException {
+        final long startNS = System.nanoTime();
+        final Result result = new Result();
+        final List<Folder> folders = new ArrayList<>();
+        for (Path nodeDataPath : nodeDataPaths) {
+            final PathReport report = new PathReport(nodeDataPath);
+            result.paths.add(report);
+            folders.add(new Folder(report, null));
+            final Path indicesPath = nodeDataPath.resolve(NodeEnvironment.INDICES_FOLDER);
+            if (Files.isDirectory(indicesPath)) {
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(indicesPath, Files::isDirectory)) {
+                    for (Path indexPath : stream) {
+                        folders.add(new Folder(report, indexPath.getFileName().toString()));
+                    }
+                }
+            }
+        }
+
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> folders.parallelStream().forEach(this::verify)).get();
+        } catch (ExecutionException e) {
+            throw new IOException("failed to verify state files", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        checkLatest(result);
+        result.took = TimeValue.timeValueNanos(System.nanoTime() - startNS);
+        Collections.sort(result.problems);
+        return result;
+    }
+
+    private void verify(Folder folder) {
+        final PathReport report = folder.report;
+        final Path folderPath = folder.indexUUID == null
+                ? report.path : report.path.resolve(NodeEnvironment.INDICES_FOLDER).resolve(folder.indexUUID);
+        final Path stateDir = folderPath.resolve(MetaDataStateFormat.STATE_DIR_NAME);
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(stateDir, "*" + MetaDataStateFormat.STATE_FILE_EXTENSION)) {
+            stream.forEach(files::add);
+        } catch (NoSuchFileException e) {
+            // an index folder without state, reported as missing if the manifest has the index
+            return;
+        } catch (IOException e) {
+            report.problem("unreadable [" + stateDir + "]: " + e);
+            return;
+        }
+        for (Path file : files) {
+            final Matcher matcher = STATE_FILE.matcher(file.getFileName().toString());
+            if (matcher.matches() == false || "state".equals(matcher.group(1)) != (folder.indexUUID != null)) {
+                continue;
+            }
+            final long generation = Long.parseLong(matcher.group(2));
+            report.present.add(folder.key(file.getFileName().toString()));
+            try {
+                report.bytes.addAndGet(Files.size(file));
+                switch (matcher.group(1)) {
+                    case "node":
+                        MappedStateReader.read(NodeMetaData.FORMAT, xContentRegistry, file);
+                        break;
+                    case "manifest":
+                        report.manifests.put(generation, MappedStateReader.read(Manifest.FORMAT, xContentRegistry, file));
+                        break;
+                    case "global":
+                        MappedStateReader.read(MetaData.FORMAT, xContentRegistry, file);
+                        break;
+                    default:
+                        MappedStateReader.read(IndexMetaData.FORMAT, xContentRegistry, file);
+                        break;
+                }
+            } catch (Exception e) {
+                report.corrupt.incrementAndGet();
+                report.problem("corrupt [" + file + "]: " + (e.getMessage() == null ? e.toString() : e.getMessage()));
+            } finally {
+                report.files.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Checks that the files the node would load, the latest node state file, the latest manifest and the state files it refers to,
+     * exist on every data path. Corrupt files count as existing, they are reported already.
+     */
+    private void checkLatest(Result result) {
+        long nodeGeneration = -1;
+        long manifestGeneration = -1;
+        for (PathReport report : result.paths) {
+            for (String key : report.present) {
+                if (key.indexOf('/') >= 0) {
+                    continue;
+                }
+                if (key.startsWith(NodeMetaData.FORMAT.getPrefix())) {
+                    nodeGeneration = Math.max(nodeGeneration, generation(key));
+                } else if (key.startsWith(Manifest.FORMAT.getPrefix())) {
+                    manifestGeneration = Math.max(manifestGeneration, generation(key));
+                }
+            }
+        }
+        Manifest manifest = null;
+        for (PathReport report : result.paths) {
+            manifest = report.manifests.get(manifestGeneration);
+            if (manifest != null) {
+                break;
+            }
+        }
+        if (manifestGeneration >= 0 && manifest == null) {
+            result.problems.add("no readable " + Manifest.FORMAT.getStateFileName(manifestGeneration) + " on any data path, the " +
+                    "global and index state files it refers to are not checked");
+        }
+
+        for (PathReport report : result.paths) {
+            if (nodeGeneration >= 0) {
+                report.expect(NodeMetaData.FORMAT.getStateFileName(nodeGeneration), "latest node state");
+            }
+            if (manifestGeneration >= 0) {
+                report.expect(Manifest.FORMAT.getStateFileName(manifestGeneration), "latest manifest");
+            }
+            if (manifest == null) {
+                continue;
+            }
+            final String source = "of " + Manifest.FORMAT.getStateFileName(manifestGeneration);
+            if (manifest.isGlobalGenerationMissing() == false) {
+                report.expect(MetaData.FORMAT.getStateFileName(manifest.getGlobalGeneration()), "global generation " + source);
+            }
+            for (Map.Entry<Index, Long> entry : manifest.getIndexGenerations().entrySet()) {
+                report.expect(entry.getKey().getUUID() + "/" + IndexMetaData.FORMAT.getStateFileName(entry.getValue()),
+                        "index " + entry.getKey().getName() + " " + source);
+            }
+        }
+        for (PathReport report : result.paths) {
+            result.problems.addAll(report.problems);
+        }
+    }
+
+    private static long generation(String fileName) {
+        final Matcher matcher = STATE_FILE.matcher(fileName);
+        return matcher.matches() ? Long.parseLong(matcher.group(2)) : -1;
+    }
+
+    private static class Folder {
+
+        final PathReport report;
+        // null for the node state folder
+        final String indexUUID;
+
+        Folder(PathReport report, String indexUUID) {
+            this.report = report;
+            this.indexUUID = indexUUID;
+        }
+
+        String key(String fileName) {
+            return indexUUID == null ? fileName : indexUUID + "/" + fileName;
+        }
+    }
+
+    /**
+     * What was found on one data path, files are named by their index folder and file name, {@code {index_uuid}/state-x.st}.
+     */
+    static class PathReport {
+
+        final Path path;
+        final AtomicInteger files = new AtomicInteger();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicInteger corrupt = new AtomicInteger();
+        int missing;
+        final Map<Long, Manifest> manifests = new ConcurrentHashMap<>();
+        final Set<String> present = ConcurrentHashMap.newKeySet();
+        final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+
+        PathReport(Path path) {
+            this.path = path;
+        }
+
+        void problem(String problem) {
+            problems.add(problem);
+        }
+
+        void expect(String key, String source) {
+            if (present.contains(key) == false) {
+                missing++;
+                final int idx = key.indexOf('/');
+                final Path file = idx < 0
+                        ? path.resolve(MetaDataStateFormat.STATE_DIR_NAME).resolve(key)
+                        : path.resolve(NodeEnvironment.INDICES_FOLDER).resolve(key.substring(0, idx))
+                            .resolve(MetaDataStateFormat.STATE_DIR_NAME).resolve(key.substring(idx + 1));
+                problems.add("missing [" + file + "] (" + source + ")");
+            }
+        }
+    }
+
+    /**
+     * The reports of all data paths, {@link #isFailed()} if any file is corrupt, missing or unreadable.
+     */
+    public static class Result {
+
+        static final String HEADER = String.format(Locale.ROOT, "%-60s %10s %12s %8s %8s", "path", "files", "size", "corrupt", "missing");
+
+        final List<PathReport> paths = new ArrayList<>();
+        final List<String> problems = new ArrayList<>();
+        TimeValue took;
+
+        public boolean isFailed() {
+            return problems.isEmpty() == false;
+        }
+
+        public int corrupt() {
+            return paths.stream().mapToInt(report -> report.corrupt.get()).sum();
+        }
+
+        public int missing() {
+            return paths.stream().mapToInt(report -> report.missing).sum();
+        }
+
+        public void print(MetaDataWriter out) throws IOException {
+            for (String problem : problems) {
+                out.append(problem).append("\n");
+            }
+            out.append(HEADER).append("\n");
+            long files = 0;
+            long bytes = 0;
+            for (PathReport report : paths) {
+                files += report.files.get();
+                bytes += report.bytes.get();
+                out.append(String.format(Locale.ROOT, "%-60s %10d %12s %8d %8d", report.path, report.files.get(),
+                        new ByteSizeValue(report.bytes.get()), report.corrupt.get(), report.missing)).append("\n");
+            }
+            final double seconds = Math.max(took.nanos(), 1L) / 1_000_000_000d;
+            out.append(String.format(Locale.ROOT, "verified [%s] state files (%s) on [%s] data paths in [%s], [%.0f] files/s, [%s]/s, %s",
+                    files, new ByteSizeValue(bytes), paths.size(), took, files / seconds, new ByteSizeValue((long) (bytes / seconds)),
+                    isFailed() ? String.format(Locale.ROOT, "[%s] corrupt, [%s] missing, [%s] problems", corrupt(), missing(),
+                            problems.size()) : "ok"));
+        }
+    }
+}
@@ -3,13 +3,28 @@ package updater;
 import org.elasticsearch.Version;
 import org.elasticsearch.cli.Terminal;
 import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.ClusterModule;
 import org.elasticsearch.cluster.metadata.IndexMetaData;
 import org.elasticsearch.cluster.metadata.Manifest;
 import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.metadata.OpaqueCustom;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.node.DiscoveryNodeRole;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.network.NetworkModule;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.core.internal.io.IOUtils;
 import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.env.NodeMetaData;
 import org.elasticsearch.gateway.GatewayMetaState;
+import org.elasticsearch.gateway.LazyMetaData;
+import org.elasticsearch.gateway.MetaStateLoader;
+import org.elasticsearch.gateway.MetaStateService;
+import org.elasticsearch.gateway.ParallelStateWriter;
+import org.elasticsearch.index.Index;
 import org.elasticsearch.node.Node;
 import org.elasticsearch.transport.TransportService;
 import org.springframework.shell.standard.ShellComponent;
@@ -18,20 +33,65 @@ import org.springframework.shell.standard.ShellOption;
 import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.elasticsearch.bootstrap.BootstrapWrap.definitelyRunningAsRoot;
 import static org.elasticsearch.cluster.metadata.IndexMetaData.SETTING_INDEX_VERSION_CREATED;
 import static org.elasticsearch.node.InternalSettingsPreparer.prepareEnvironment;
 import static updater.MetaDataPrinter.metaDataString;
+import static updater.MetaDataPrinter.print;
+import static updater.MetaDataPrinter.printRaw;
 import static updater.MetaDataPrinter.show;
 
 @ShellComponent
 public class UpdaterService {
 
+    /**
+     * -Dupdater.headless=true: only NodeEnvironment and MetaStateService are created, no Node
+     */
+    static final String HEADLESS_PROPERTY = "updater.headless";
+
+    /**
+     * -Dupdater.load.parallelism=N: threads used to read indices/{index_uuid}/_state/state-x.st at startup
+     */
+    static final String LOAD_PARALLELISM_PROPERTY = "updater.load.parallelism";
+
+    /**
+     * -Dupdater.lazy=true: only manifest-x.st and global-x.st are loaded, state-x.st is parsed when a command needs it
+     */
+    static final String LAZY_PROPERTY = "updater.lazy";
+
     private Node node;
 
+    private Environment environment;
+    private NodeEnvironment nodeEnvironment;
+    private NamedXContentRegistry xContentRegistry;
+    private GatewayMetaState gatewayMetaState;
+
+    // 启动时使用的 settings, fleet 模式下 path.data 目标沿用
+    private Map<String, String> environmentSettings;
+
+    // 按索引名/UUID 查找, 每次加载后第一次使用时构建, reload 时失效
+    private IndexLookup indexLookup;
+
+    // 最近一次命令的失败信息, batch 模式遇到失败时停止执行
+    private String failure;
+
+    // 命令输出的位置, daemon 模式下 update/reload 的输出写入 HTTP 响应
+    private Terminal terminal = Terminal.DEFAULT;
+
     @PostConstruct
     public void init() {
         // check if the user is running as root, and bail
@@ -53,13 +113,184 @@ public class UpdaterService {
                 settings.put(key.substring("es.".length()), System.getProperty(key));
             }
         }
+        environmentSettings = settings;
         Environment environment = prepareEnvironment(Settings.EMPTY, settings, null, () -> "UpdaterNode");
 
-        // 创建node
-        node = new Node(environment);
+        if (Boolean.parseBoolean(System.getProperty(HEADLESS_PROPERTY))) {
+            initHeadless(environment);
+        } else {
+            // 创建node
+            node = new Node(environment);
+            this.environment = node.getEnvironment();
+            nodeEnvironment = node.getNodeEnvironment();
+            xContentRegistry = OpaqueCustom.passthrough(getInstance(NamedXContentRegistry.class));
+            gatewayMetaState = getInstance(GatewayMetaState.class);
+
+            getInstance(TransportService.class).doStart();
+        }
+        gatewayMetaState.setLoadParallelism(Integer.getInteger(LOAD_PARALLELISM_PROPERTY, 1));
+        gatewayMetaState.setLazy(Boolean.parseBoolean(System.getProperty(LAZY_PROPERTY)));
+        startGateway();
+    }
+
+    private void initHeadless(Environment environment) {
+        try {
+            this.environment = environment;
+            // 只注册解析元数据需要的 NamedXContent, 插件提供的 customs 以原始字节保留
+            DiscoveryNode.setPossibleRoles(DiscoveryNodeRole.BUILT_IN_ROLES);
+            nodeEnvironment = new NodeEnvironment(environment.settings(), environment);
+            xContentRegistry = OpaqueCustom.passthrough(new NamedXContentRegistry(Stream.of(
+                    NetworkModule.getNamedXContents().stream(),
+                    ClusterModule.getNamedXWriteables().stream())
+                    .flatMap(Function.identity()).collect(Collectors.toList())));
+            gatewayMetaState = new GatewayMetaState();
+        } catch (Exception e) {
+            throw new IllegalStateException("headless bootstrap failed", e);
+        }
+    }
 
-        getInstance(TransportService.class).doStart();
-        getInstance(GatewayMetaState.class).start(node);
+    private void startGateway() {
+        if (node != null) {
+            gatewayMetaState.start(node);
+        } else {
+            gatewayMetaState.start(environment.settings(), nodeEnvironment, xContentRegistry);
+        }
+    }
+
+    private synchronized IndexLookup indexLookup() {
+        if (indexLookup == null) {
+            if (gatewayMetaState.isLazy()) {
+                indexLookup = new IndexLookup(gatewayMetaState.getLazyMetaData().indices());
+            } else {
+                List<Index> indices = new ArrayList<>();
+                for (IndexMetaData indexMetaData : gatewayMetaState.getMetaData()) {
+                    indices.add(indexMetaData.getIndex());
+                }
+                indexLookup = new IndexLookup(indices);
+            }
+        }
+        return indexLookup;
+    }
+
+    /**
+     * Returns and clears the failure of the last command, null if it succeeded.
+     */
+    String takeFailure() {
+        String failure = this.failure;
+        this.failure = null;
+        return failure;
+    }
+
+    /**
+     * Runs the command with the messages it prints written to {@code writer} instead of the console. Commands run this way must not
+     * run concurrently with other commands, the daemon mode holds its write lock.
+     */
+    void printingTo(PrintWriter writer, Runnable command) {
+        Terminal previous = terminal;
+        terminal = new WriterTerminal(writer);
+        try {
+            command.run();
+        } finally {
+            writer.flush();
+            terminal = previous;
+        }
+    }
+
+    private static class WriterTerminal extends Terminal {
+
+        private final PrintWriter writer;
+
+        WriterTerminal(PrintWriter writer) {
+            super(System.lineSeparator());
+            this.writer = writer;
+        }
+
+        @Override
+        public String readText(String prompt) {
+            throw new UnsupportedOperationException("no input, the output goes to a writer");
+        }
+
+        @Override
+        public char[] readSecret(String prompt) {
+            throw new UnsupportedOperationException("no input, the output goes to a writer");
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            return writer;
+        }
+
+        @Override
+        public PrintWriter getErrorWriter() {
+            return writer;
+        }
+    }
+
+    private void fail(String message, Exception e) {
+        failure = e == null ? message : message + " " + e;
+        terminal.errorPrintln(message);
+        if (e != null) {
+            e.printStackTrace();
+        }
+    }
+
+    private void display(String output, CheckedConsumer<MetaDataWriter, IOException> printer) {
+        if (show(output, printer) == false) {
+            failure = "write output error";
+        }
+    }
+
+    /*
+     * 打印内容与输出位置无关, shell 命令输出到终端/文件, daemon 模式输出到 HTTP 响应
+     */
+
+    CheckedConsumer<MetaDataWriter, IOException> manifestPrinter(int num, String name) {
+        Manifest manifest = gatewayMetaState.getManifest();
+        List<Index> indices = StringUtils.hasText(name) ? indexLookup().find(name) : null;
+        return out -> print(out, manifest, num, indices);
+    }
+
+    CheckedConsumer<MetaDataWriter, IOException> globalPrinter(int num, int limit, String tempName, boolean raw, int depth,
+                                                               boolean rawMappings) {
+        if (raw) {
+            StateTranscoder transcoder = stateTranscoder();
+            return out -> printRaw(out, transcoder, num, limit, tempName, depth);
+        }
+        if (gatewayMetaState.isLazy()) {
+            LazyMetaData lazyMetaData = gatewayMetaState.getLazyMetaData();
+            return out -> print(out, lazyMetaData, num, limit, tempName, rawMappings);
+        }
+        MetaData metaData = gatewayMetaState.getMetaData();
+        return out -> print(out, metaData, num, limit, tempName, rawMappings);
+    }
+
+    CheckedConsumer<MetaDataWriter, IOException> indexPrinter(String name, boolean raw, int limit, int depth, boolean rawMappings) {
+        List<Index> indices = indexLookup().find(name);
+        if (raw) {
+            StateTranscoder transcoder = stateTranscoder();
+            return out -> printRaw(out, transcoder, indices, limit, depth);
+        }
+        if (gatewayMetaState.isLazy()) {
+            LazyMetaData lazyMetaData = gatewayMetaState.getLazyMetaData();
+            return out -> print(out, lazyMetaData, indices, limit, rawMappings);
+        }
+        MetaData metaData = gatewayMetaState.getMetaData();
+        return out -> print(out, metaData, indices, limit, rawMappings);
+    }
+
+    /**
+     * --r 直接把 state 文件的 SMILE 内容转成 JSON 输出, 不构建 MetaData/IndexMetaData, 读取的是已加载的 manifest 引用的文件
+     */
+    private StateTranscoder stateTranscoder() {
+        Manifest manifest = gatewayMetaState.getManifest();
+        if (manifest == null || manifest.isEmpty()) {
+            throw new IllegalStateException("no manifest loaded, raw printing reads the state files the manifest refers to");
+        }
+        return new StateTranscoder(manifest, nodeEnvironment);
+    }
+
+    NodeMetaData getNodeMetaData() {
+        return nodeEnvironment.getNodeMetaData();
     }
 
     private <T> T getInstance(Class<T> clazz) {
@@ -69,50 +300,50 @@ public class UpdaterService {
     @ShellMethod(key = "print node", value = "NodeMetaData, {path.data}/nodes/{id}/_state/node-x.st")
     public void printNode() {
         try {
-            NodeMetaData nodeMetaData = node.getNodeEnvironment().getNodeMetaData();
-            Terminal.DEFAULT.println(metaDataString(nodeMetaData));
+            NodeMetaData nodeMetaData = nodeEnvironment.getNodeMetaData();
+            terminal.println(metaDataString(nodeMetaData));
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("print node error!");
-            e.printStackTrace();
+            fail("print node error!", e);
         }
     }
 
     @ShellMethod(key = "print manifest", value = "Manifest, {path.data}/nodes/{id}/_state/manifest-x.st")
     public void printManifest(@ShellOption(defaultValue = "10", value = "n", help = "foreach num") int num,
-                              @ShellOption(defaultValue = "", value = "i", help = "index name") String name,
+                              @ShellOption(defaultValue = "", value = "i", help = "index name, uuid or pattern") String name,
                               @ShellOption(defaultValue = "", value = "o", help = "output file path") String output) {
         try {
-            Manifest manifest = getInstance(GatewayMetaState.class).getManifest();
-            show(output, metaDataString(manifest, num, name));
+            display(output, manifestPrinter(num, name));
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("print manifest error!");
-            e.printStackTrace();
+            fail("print manifest error!", e);
         }
     }
 
     @ShellMethod(key = "print global", value = "MetaData, {path.data}/nodes/{id}/_state/global-x.st")
     public void printGlobal(@ShellOption(defaultValue = "10", value = "n", help = "foreach num") int num,
-                            @ShellOption(defaultValue = "512", value = "l", help = "foreach value limit len") int limit,
+                            @ShellOption(defaultValue = "512", value = "l", help = "foreach value limit len (bytes)") int limit,
                             @ShellOption(defaultValue = "", value = "t", help = "template name") String tempName,
+                            @ShellOption(defaultValue = "false", value = "r", help = "raw, transcode the state files") boolean raw,
+                            @ShellOption(defaultValue = "-1", value = "d", help = "raw max depth, -1 unlimited") int depth,
+                            @ShellOption(defaultValue = "false", value = "m", help = "index mappings as stored") boolean rawMappings,
                             @ShellOption(defaultValue = "", value = "o", help = "output file path") String output) {
         try {
-            MetaData metaData = getInstance(GatewayMetaState.class).getMetaData();
-            show(output, metaDataString(metaData, num, limit, tempName));
+            display(output, globalPrinter(num, limit, tempName, raw, depth, rawMappings));
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("print global error!");
-            e.printStackTrace();
+            fail("print global error!", e);
         }
     }
 
     @ShellMethod(key = "print index", value = "IndexMetaData, {path.data}/nodes/{id}/indices/{index_uuid}/_state/state-x.st")
-    public void printIndex(@ShellOption(defaultValue = "", value = "i", help = "index name") String name,
+    public void printIndex(@ShellOption(defaultValue = "", value = "i", help = "index name, uuid or pattern") String name,
+                           @ShellOption(defaultValue = "false", value = "r", help = "raw, transcode the state files") boolean raw,
+                           @ShellOption(defaultValue = "-1", value = "l", help = "value limit len (bytes)") int limit,
+                           @ShellOption(defaultValue = "-1", value = "d", help = "raw max depth, -1 unlimited") int depth,
+                           @ShellOption(defaultValue = "false", value = "m", help = "mappings as stored") boolean rawMappings,
                            @ShellOption(defaultValue = "", value = "o", help = "output file path") String output) {
         try {
-            MetaData metaData = getInstance(GatewayMetaState.class).getMetaData();
-            show(output, metaDataString(metaData, name));
+            display(output, indexPrinter(name, raw, limit, depth, rawMappings));
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("print index error!");
-            e.printStackTrace();
+            fail("print index error!", e);
         }
     }
 
@@ -122,72 +353,332 @@ public class UpdaterService {
             @ShellOption(defaultValue = "all", value = "s", help = "scope [node|global|all]") String scope) {
         Version version;
         try {
-            if (ver != null && ver.length() > 0 && Integer.parseInt(ver) > 0) {
-                version = Version.fromId(Integer.parseInt(ver));
-            } else {
-                version = Version.V_7_5_1;
-            }
-            Terminal.DEFAULT.println(String.format("update to Version[%s/%s]", version, version.id));
+            version = parseVersion(ver);
+            terminal.println(String.format("update to Version[%s/%s]", version, version.id));
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("write nodeMetaData error!");
-            e.printStackTrace();
+            fail("write nodeMetaData error!", e);
             return;
         }
         try {
             if (scope.equalsIgnoreCase("node") || scope.equalsIgnoreCase("all")) {
-                Terminal.DEFAULT.println("update nodeMetaData...");
-                NodeMetaData nodeMetaData = node.getNodeEnvironment().getNodeMetaData();
+                terminal.println("update nodeMetaData...");
+                NodeMetaData nodeMetaData = nodeEnvironment.getNodeMetaData();
                 nodeMetaData.setNodeVersion(version);
-                NodeMetaData.FORMAT.writeAndCleanup(nodeMetaData, node.getNodeEnvironment().nodeDataPaths());
-                Terminal.DEFAULT.println("update nodeMetaData done.");
+                ParallelStateWriter.writeAndCleanup(NodeMetaData.FORMAT, nodeMetaData, nodeEnvironment.nodeDataPaths());
+                terminal.println("update nodeMetaData done.");
             }
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("write nodeMetaData error!");
-            e.printStackTrace();
+            fail("write nodeMetaData error!", e);
             return;
         }
         try {
             if (scope.equalsIgnoreCase("global") || scope.equalsIgnoreCase("all")) {
-                Terminal.DEFAULT.println("update clusterState...");
-                GatewayMetaState metaState = getInstance(GatewayMetaState.class);
-                ClusterState clusterState = metaState.getPersistedState().getLastAcceptedState();
-                for (IndexMetaData indexMetaData : clusterState.getMetaData()) {
-                    Version createdVersion = SETTING_INDEX_VERSION_CREATED.get(indexMetaData.getSettings());
-                    if (createdVersion != null && createdVersion.id != version.id) {
-                        Settings.Builder indexSettingsBuilder = Settings.builder();
-                        indexSettingsBuilder.put(indexMetaData.getSettings());
-                        indexSettingsBuilder.put(IndexMetaData.SETTING_INDEX_VERSION_CREATED.getKey(), version);
-                        indexMetaData.setSettings(indexSettingsBuilder.build());
+                terminal.println("update indexMetaData...");
+                // 只重写 created version 有变化的 IndexMetaData, global-x.st 和其余索引的状态文件保持不变
+                Iterable<IndexMetaData> indices = gatewayMetaState.isLazy()
+                        ? gatewayMetaState.getLazyMetaData() : gatewayMetaState.getMetaData();
+                List<IndexMetaData> changed = new ArrayList<>();
+                for (IndexMetaData indexMetaData : indices) {
+                    if (updateCreatedVersion(indexMetaData, version)) {
+                        changed.add(indexMetaData);
                     }
                 }
-                metaState.getPersistedState().setLastAcceptedState(clusterState);
-                Terminal.DEFAULT.println("update clusterState done.");
+                gatewayMetaState.writeIndices("update version", changed);
+                terminal.println(String.format("update indexMetaData done, [%s] indices written.", changed.size()));
             }
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("write nodeMetaData error!");
-            e.printStackTrace();
+            fail("write nodeMetaData error!", e);
+        }
+    }
+
+    private static Version parseVersion(String ver) {
+        if (ver != null && ver.length() > 0 && Integer.parseInt(ver) > 0) {
+            return Version.fromId(Integer.parseInt(ver));
         }
+        return Version.V_7_5_1;
+    }
+
+    static boolean updateCreatedVersion(IndexMetaData indexMetaData, Version version) {
+        Version createdVersion = SETTING_INDEX_VERSION_CREATED.get(indexMetaData.getSettings());
+        if (createdVersion != null && createdVersion.id != version.id) {
+            Settings.Builder indexSettingsBuilder = Settings.builder();
+            indexSettingsBuilder.put(indexMetaData.getSettings());
+            indexSettingsBuilder.put(IndexMetaData.SETTING_INDEX_VERSION_CREATED.getKey(), version);
+            indexMetaData.setSettings(indexSettingsBuilder.build());
+            return true;
+        }
+        return false;
+    }
+
+    @ShellMethod(key = "fleet update", value = "update the version of many nodes given as ES homes or path.data roots")
+    public void fleetUpdate(
+            @ShellOption(defaultValue = "", value = "t",
+                    help = "comma separated ES homes or path.data roots, @file for one per line") String targets,
+            @ShellOption(defaultValue = "", value = "v", help = "version") String ver,
+            @ShellOption(defaultValue = "all", value = "s", help = "scope [node|global|all]") String scope,
+            @ShellOption(defaultValue = "4", value = "p", help = "nodes processed at the same time") int parallelism,
+            @ShellOption(defaultValue = "false", value = "c", help = "check only, nothing is written") boolean dryRun) {
+        try {
+            List<String> targetList = parseTargets(targets);
+            if (targetList.isEmpty()) {
+                fail("fleet targets are required!", null);
+                return;
+            }
+            Version version = parseVersion(ver);
+            terminal.println(String.format("%s [%s] nodes to Version[%s/%s] with parallelism [%s]",
+                    dryRun ? "check" : "update", targetList.size(), version, version.id, parallelism));
+            long startNS = System.nanoTime();
+            FleetUpdater fleetUpdater = new FleetUpdater(environmentSettings, environment.dataFiles(), xContentRegistry, parallelism);
+            List<FleetUpdater.NodeReport> reports = fleetUpdater.updateVersion(targetList, version, scope, dryRun);
+
+            terminal.println(FleetUpdater.NodeReport.HEADER);
+            int failed = 0;
+            for (FleetUpdater.NodeReport report : reports) {
+                terminal.println(report.toString());
+                if (report.isFailed()) {
+                    failed++;
+                }
+            }
+            terminal.println(String.format("[%s] nodes, [%s] succeeded, [%s] failed, took [%s] (* node version %s)",
+                    reports.size(), reports.size() - failed, failed, TimeValue.timeValueNanos(System.nanoTime() - startNS),
+                    dryRun ? "to update" : "updated"));
+            if (failed > 0) {
+                fail(String.format("fleet update failed on [%s] of [%s] nodes!", failed, reports.size()), null);
+            }
+        } catch (Exception e) {
+            fail("fleet update error!", e);
+        }
+    }
+
+    private static List<String> parseTargets(String targets) throws IOException {
+        Stream<String> lines;
+        if (targets.startsWith("@")) {
+            lines = Files.readAllLines(Paths.get(targets.substring(1))).stream().filter(line -> line.trim().startsWith("#") == false);
+        } else {
+            lines = Stream.of(targets.split(","));
+        }
+        return lines.map(String::trim).filter(StringUtils::hasText).collect(Collectors.toList());
     }
 
     @ShellMethod(key = "reload metadata", value = "reload nodeMetaData/metaData/manifest")
     public void reloadMetaDate(
-            @ShellOption(defaultValue = "all", value = "s", help = "scope [node|global|all]") String scope) {
+            @ShellOption(defaultValue = "all", value = "s", help = "scope [node|global|all]") String scope,
+            @ShellOption(defaultValue = "0", value = "p", help = "index state load parallelism, 0 keeps the current one") int parallelism,
+            @ShellOption(defaultValue = "false", value = "f", help = "re-read every state file instead of the changed ones") boolean full) {
+        indexLookup = null;
         try {
             if (scope.equalsIgnoreCase("node") || scope.equalsIgnoreCase("all")) {
-                node.getNodeEnvironment().reload(node.getEnvironment());
+                // 只重新读取 node-x.st, 不重新创建 NodeEnvironment
+                long startNS = System.nanoTime();
+                nodeEnvironment.reload();
+                terminal.println(String.format("reload nodeMetaData done, took [%s]",
+                        TimeValue.timeValueNanos(System.nanoTime() - startNS)));
             }
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("reload nodeMetaData error!");
-            e.printStackTrace();
+            fail("reload nodeMetaData error!", e);
             return;
         }
         try {
             if (scope.equalsIgnoreCase("global") || scope.equalsIgnoreCase("all")) {
-                getInstance(GatewayMetaState.class).start(node);
+                if (parallelism > 0) {
+                    gatewayMetaState.setLoadParallelism(parallelism);
+                }
+                // 只重新解析 manifest 中 generation 有变化的状态文件, 无法增量加载时全量加载
+                boolean incremental = full == false && gatewayMetaState.reload();
+                if (incremental == false) {
+                    startGateway();
+                }
+                terminal.println(String.format("reload metaData/manifest done (%s), took [%s] with parallelism [%s]",
+                        incremental ? "incremental" : "full", gatewayMetaState.getLastLoadTime(), gatewayMetaState.getLoadParallelism()));
             }
         } catch (Exception e) {
-            Terminal.DEFAULT.errorPrintln("reload metaData/manifest error!");
-            e.printStackTrace();
+            fail("reload metaData/manifest error!", e);
+        }
+    }
+
+    @ShellMethod(key = "verify state", value = "verify the checksum and content of every state file on every data path")
+    public void verifyState(
+            @ShellOption(defaultValue = "0", value = "p", help = "verify parallelism, 0 uses the available processors") int parallelism,
+            @ShellOption(defaultValue = "", value = "o", help = "output file path") String output) {
+        try {
+            StateVerifier.Result result = verifyState(parallelism);
+            display(output, result::print);
+            if (result.isFailed()) {
+                fail(String.format("verify state failed, [%s] corrupt and [%s] missing state files!",
+                        result.corrupt(), result.missing()), null);
+            }
+        } catch (Exception e) {
+            fail("verify state error!", e);
+        }
+    }
+
+    StateVerifier.Result verifyState(int parallelism) throws Exception {
+        // 读取磁盘上的文件, 与当前加载的元数据无关
+        return new StateVerifier(nodeEnvironment.nodeDataPaths(), xContentRegistry,
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors()).verify();
+    }
+
+    @ShellMethod(key = "scan state", value = "list generation, size and checksum of the state files from their header and footer only")
+    public void scanState(
+            @ShellOption(defaultValue = "false", value = "a", help = "list every index folder, not only the differing ones") boolean all,
+            @ShellOption(defaultValue = "0", value = "p", help = "scan parallelism, 0 uses the available processors") int parallelism,
+            @ShellOption(defaultValue = "", value = "o", help = "output file path") String output) {
+        try {
+            display(output, scanState(all, parallelism)::print);
+        } catch (Exception e) {
+            fail("scan state error!", e);
+        }
+    }
+
+    StateScanner.Result scanState(boolean all, int parallelism) throws Exception {
+        return new StateScanner(nodeEnvironment.nodeDataPaths(),
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors(), all).scan();
+    }
+
+    @ShellMethod(key = "benchmark", value = "benchmark metadata load, print and write, writes go to scratch data paths only")
+    public void benchmark(
+            @ShellOption(defaultValue = "all", value = "s", help = "scope [load|print|write|all]") String scope,
+            @ShellOption(defaultValue = "3", value = "w", help = "warmup iterations") int warmup,
+            @ShellOption(defaultValue = "10", value = "i", help = "measured iterations") int iterations,
+            @ShellOption(defaultValue = "50", value = "n", help = "indices written by the incremental write") int dirty,
+            @ShellOption(defaultValue = "1", value = "d", help = "scratch data paths of the write benchmark") int dataPaths) {
+        try {
+            if (scope.equalsIgnoreCase("load") || scope.equalsIgnoreCase("all")) {
+                MetaStateLoader loader = new MetaStateLoader(nodeEnvironment, xContentRegistry,
+                        new MetaStateService(nodeEnvironment, xContentRegistry));
+                if (gatewayMetaState.isLazy()) {
+                    terminal.println(MetaDataBenchmark.run("load lazy", warmup, iterations, loader::loadLazyState));
+                } else {
+                    int parallelism = gatewayMetaState.getLoadParallelism();
+                    terminal.println(MetaDataBenchmark.run("load full (p=" + parallelism + ")", warmup, iterations,
+                            () -> loader.loadFullState(parallelism)));
+                }
+            }
+            if (scope.equalsIgnoreCase("print") || scope.equalsIgnoreCase("all")) {
+                terminal.println(MetaDataBenchmark.run("print global", warmup, iterations, () -> {
+                    try (MetaDataWriter out = new MetaDataWriter(OutputStream.nullOutputStream(), true)) {
+                        if (gatewayMetaState.isLazy()) {
+                            print(out, gatewayMetaState.getLazyMetaData(), -1, -1, null, false);
+                        } else {
+                            print(out, gatewayMetaState.getMetaData(), -1, -1, null, false);
+                        }
+                    }
+                }));
+            }
+            if (scope.equalsIgnoreCase("write") || scope.equalsIgnoreCase("all")) {
+                benchmarkWrite(warmup, iterations, dirty, dataPaths);
+            }
+        } catch (Exception e) {
+            fail("benchmark error!", e);
+        }
+    }
+
+    @ShellMethod(key = "check reload", value = "reload the metadata many times and check the retained cluster states stay bounded")
+    public void checkReload(
+            @ShellOption(defaultValue = "300", value = "n", help = "reloads, alternating full and incremental") int reloads) {
+        try {
+            List<String> classNames = List.of(ClusterState.class.getName(), IndexMetaData.class.getName());
+            // one full and one incremental reload first, so that the baseline holds what a reload keeps anyway
+            reloadForCheck(0);
+            reloadForCheck(1);
+            Map<String, Long> before = MetaDataBenchmark.liveInstances(classNames);
+            long startNS = System.nanoTime();
+            for (int i = 0; i < reloads; i++) {
+                reloadForCheck(i);
+            }
+            TimeValue took = TimeValue.timeValueNanos(System.nanoTime() - startNS);
+            Map<String, Long> after = MetaDataBenchmark.liveInstances(classNames);
+            long indexCount = getManifestIndexCount();
+            boolean bounded = true;
+            for (String className : classNames) {
+                terminal.println(String.format("%-50s live before [%s] after [%s] reloads", className, before.get(className),
+                        after.get(className)));
+                // at most one more load may be held than before, a leak grows with every reload
+                long slack = className.equals(IndexMetaData.class.getName()) ? indexCount + 2 : 2;
+                bounded &= after.get(className) <= before.get(className) + slack;
+            }
+            terminal.println(String.format("[%s] reloads of [%s] indices took [%s]", reloads, indexCount, took));
+            if (bounded == false) {
+                fail("check reload failed, reloads retain cluster states!", null);
+            }
+        } catch (Exception e) {
+            fail("check reload error!", e);
+        }
+    }
+
+    private void reloadForCheck(int i) throws Exception {
+        indexLookup = null;
+        if (i % 2 == 1 && gatewayMetaState.reload()) {
+            return;
+        }
+        startGateway();
+    }
+
+    private long getManifestIndexCount() {
+        Manifest manifest = gatewayMetaState.getManifest();
+        return manifest == null ? 0 : manifest.getIndexGenerations().size();
+    }
+
+    private void benchmarkWrite(int warmup, int iterations, int dirty, int dataPaths) throws Exception {
+        MetaData globalMetaData;
+        List<IndexMetaData> indices = new ArrayList<>();
+        if (gatewayMetaState.isLazy()) {
+            globalMetaData = gatewayMetaState.getLazyMetaData().getGlobalMetaData();
+            gatewayMetaState.getLazyMetaData().forEach(indices::add);
+        } else {
+            globalMetaData = gatewayMetaState.getMetaData();
+            gatewayMetaState.getMetaData().forEach(indices::add);
+        }
+        List<IndexMetaData> dirtyIndices = indices.subList(0, Math.min(dirty, indices.size()));
+
+        // 写入临时目录, 不修改节点上的元数据
+        Path scratch = Files.createTempDirectory("updater-benchmark");
+        try {
+            Path[] paths = new Path[dataPaths];
+            for (int i = 0; i < dataPaths; i++) {
+                paths[i] = Files.createDirectories(scratch.resolve(String.valueOf(i)));
+            }
+            MetaDataBenchmark.ScratchNode scratchNode = new MetaDataBenchmark.ScratchNode(paths);
+            terminal.println(MetaDataBenchmark.run("write full", warmup, iterations,
+                    () -> scratchNode.write(globalMetaData, indices)));
+            terminal.println(MetaDataBenchmark.run("write incremental", warmup, iterations,
+                    () -> scratchNode.write(null, dirtyIndices)));
+            terminal.println(String.format("write: [%s] indices, [%s] dirty, [%s] data paths",
+                    indices.size(), dirtyIndices.size(), dataPaths));
+        } finally {
+            IOUtils.rm(scratch);
+        }
+    }
+
+    @ShellMethod(key = "generate metadata", value = "generate a synthetic node state into {output}/{0..d-1}/nodes/0")
+    public void generateMetaData(
+            @ShellOption(defaultValue = "", value = "o", help = "output directory") String output,
+            @ShellOption(defaultValue = "10000", value = "n", help = "index count") int indices,
+            @ShellOption(defaultValue = "50", value = "f", help = "mapping fields per index") int fields,
+            @ShellOption(defaultValue = "100", value = "t", help = "template count") int templates,
+            @ShellOption(defaultValue = "10", value = "c", help = "repositories and index tombstones") int customs,
+            @ShellOption(defaultValue = "1", value = "d", help = "data paths") int dataPaths,
+            @ShellOption(defaultValue = "0", value = "s", help = "seed") long seed,
+            @ShellOption(defaultValue = "0", value = "p", help = "write parallelism, 0 uses the available processors") int parallelism) {
+        if (!StringUtils.hasText(output)) {
+            fail("output directory is required!", null);
+            return;
+        }
+        try {
+            Path[] nodePaths = new Path[dataPaths];
+            String[] pathData = new String[dataPaths];
+            for (int i = 0; i < dataPaths; i++) {
+                Path dataPath = Paths.get(output, String.valueOf(i)).toAbsolutePath();
+                pathData[i] = dataPath.toString();
+                nodePaths[i] = dataPath.resolve(NodeEnvironment.NODES_FOLDER).resolve("0");
+            }
+            long startNS = System.nanoTime();
+            new MetaDataGenerator(seed, indices, fields, templates, customs)
+                    .generate(nodePaths, parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+            terminal.println(String.format("generated [%s] indices, [%s] templates in [%s], use -Des.path.data=%s",
+                    indices, templates, TimeValue.timeValueNanos(System.nanoTime() - startNS), String.join(",", pathData)));
+        } catch (Exception e) {
+            fail("generate metadata error!", e);
         }
     }
 }